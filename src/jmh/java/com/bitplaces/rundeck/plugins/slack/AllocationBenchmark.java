@@ -0,0 +1,87 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes allocated to turn a notification into a request body. Run with the GC profiler ({@code gradle jmh} does) and
+ * compare {@code gc.alloc.rate.norm} of the rendering into reused per-thread buffers against the former
+ * StringWriter, URLEncoder and getBytes path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+
+    @Param({"0", "500"})
+    public int failedNodes;
+
+    private SlackNotificationPlugin plugin;
+    private Template template;
+    private Map<String, Object> executionData;
+    private Map<String, Object> config;
+
+    @Setup
+    public void setUp() throws IOException {
+        plugin = PluginFixtures.configure(new SlackNotificationPlugin(), PluginFixtures.defaultProperties());
+        Configuration cfg = new Configuration();
+        cfg.setTemplateLoader(new ClassTemplateLoader(SlackNotificationPlugin.class, "/templates"));
+        template = cfg.getTemplate("slack-incoming-message.ftl");
+        executionData = PluginFixtures.executionData(20, failedNodes);
+        config = new HashMap<String, Object>();
+    }
+
+    @Benchmark
+    public int reusedBuffers() {
+        return plugin.generateMessage(SlackTrigger.FAILURE, executionData, config, "#rundeck", SlackPayload.Format.FORM).length();
+    }
+
+    @Benchmark
+    public int stringWriterAndUrlEncoder() throws Exception {
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("trigger", SlackTrigger.FAILURE.triggerName());
+        model.put("color", SlackTrigger.FAILURE.color());
+        model.put("executionData", executionData);
+        model.put("config", config);
+        model.put("channel", "#rundeck");
+        StringWriter sw = new StringWriter();
+        template.process(model, sw);
+        return ("payload=" + URLEncoder.encode(sw.toString(), "UTF-8")).getBytes("UTF-8").length;
+    }
+}
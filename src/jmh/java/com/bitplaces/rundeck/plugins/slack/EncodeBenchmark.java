@@ -0,0 +1,65 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of an already rendered message into the request body, the baseline for rendering straight into the
+ * request body in {@link RenderBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"form", "json"})
+    public String payloadFormat;
+
+    @Param({"0", "500"})
+    public int failedNodes;
+
+    private SlackPayload.Format format;
+    private String message;
+
+    @Setup
+    public void setUp() {
+        format = SlackPayload.Format.forName(payloadFormat);
+        SlackNotificationPlugin plugin = PluginFixtures.configure(new SlackNotificationPlugin(), PluginFixtures.defaultProperties());
+        message = plugin.generateMessage(SlackTrigger.FAILURE, PluginFixtures.executionData(20, failedNodes),
+                new HashMap<String, Object>(), "#rundeck", SlackPayload.Format.JSON).message();
+    }
+
+    @Benchmark
+    public int encode() {
+        return SlackPayload.encode(message, format).length();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of the Slack message template straight into the request body, with small and large execution data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"success", "failure"})
+    public String trigger;
+
+    @Param({"0", "50"})
+    public int options;
+
+    @Param({"0", "500"})
+    public int failedNodes;
+
+    @Param({"form", "json"})
+    public String payloadFormat;
+
+    private SlackNotificationPlugin plugin;
+    private SlackPayload.Format format;
+    private SlackTrigger slackTrigger;
+    private Map<String, Object> executionData;
+    private Map<String, Object> config;
+
+    @Setup
+    public void setUp() {
+        plugin = PluginFixtures.configure(new SlackNotificationPlugin(), PluginFixtures.defaultProperties());
+        slackTrigger = SlackTrigger.forName(trigger);
+        format = SlackPayload.Format.forName(payloadFormat);
+        executionData = PluginFixtures.executionData(options, failedNodes);
+        config = new HashMap<String, Object>();
+    }
+
+    @Benchmark
+    public int generateMessage() {
+        return plugin.generateMessage(slackTrigger, executionData, config, "#rundeck", format).length();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent notifications against a slow webhook, showing how Slack latency reaches the execution threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class WebhookLatencyBenchmark {
+
+    @Param({"0", "50"})
+    public long latencyMillis;
+
+    @Param({"false", "true"})
+    public String keepAlive;
+
+    @Param({"false", "true"})
+    public String asyncDispatch;
+
+    private SlackWebhookStubServer server;
+    private SlackNotificationPlugin plugin;
+    private Map<String, Object> executionData;
+    private Map<String, Object> config;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = SlackWebhookStubServer.start();
+        server.setDefaultReply(SlackWebhookStubServer.Reply.ok().delayedBy(latencyMillis));
+        Map<String, String> properties = PluginFixtures.defaultProperties();
+        properties.put("webhook_base_url", server.baseUrl());
+        properties.put("http_keep_alive", keepAlive);
+        properties.put("async_dispatch", asyncDispatch);
+        properties.put("async_overflow_policy", "drop-newest");
+        plugin = PluginFixtures.configure(new SlackNotificationPlugin(), properties);
+        executionData = PluginFixtures.executionData(5, 0);
+        config = new HashMap<String, Object>();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%nstub received %d requests, at most %d concurrently%n", server.requestCount(), server.maxConcurrentRequests());
+        server.stop();
+    }
+
+    @Benchmark
+    public boolean postNotification() {
+        return plugin.postNotification("success", executionData, config);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects notifications bound for the same webhook and channel during a short window, so that a burst of job
+ * completions is sent as one Slack message with several attachments instead of one message each.
+ *
+ * A batch is flushed when its window ends or when it reaches its maximum size. Batches are shared JVM-wide; the
+ * flusher of the notification that opened a batch sends the whole batch.
+ */
+final class SlackBatcher {
+
+    /** Slack rejects messages with more attachments than this */
+    static final int MAX_ATTACHMENTS = 100;
+
+    /**
+     * Sends a completed batch.
+     */
+    interface Flusher {
+        /**
+         * @param notifications template models of the batched notifications, oldest first
+         */
+        void flush(List<Map<String, Object>> notifications);
+    }
+
+    private static final Map<String, Batch> BATCHES = new HashMap<String, Batch>();
+
+    private static final ScheduledExecutorService FLUSH_SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "slack-batch-flush");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private SlackBatcher() {
+    }
+
+    private static final class Batch {
+
+        private final List<Map<String, Object>> notifications = new ArrayList<Map<String, Object>>();
+        private final Flusher flusher;
+        private ScheduledFuture<?> timer;
+
+        Batch(Flusher flusher) {
+            this.flusher = flusher;
+        }
+    }
+
+    /**
+     * Adds a notification to the open batch for the key, opening one if needed.
+     *
+     * @param key webhook and channel the notification is sent to
+     * @param windowMillis time a new batch stays open
+     * @param maxSize number of notifications after which a batch is flushed right away
+     * @param notification template model of the notification
+     * @param flusher sends the batch, if the notification opens it
+     */
+    static void add(final String key, long windowMillis, int maxSize, Map<String, Object> notification, Flusher flusher) {
+        Batch full = null;
+        synchronized (BATCHES) {
+            Batch batch = BATCHES.get(key);
+            if (batch == null) {
+                final Batch opened = new Batch(flusher);
+                opened.timer = FLUSH_SCHEDULER.schedule(new Runnable() {
+                    public void run() {
+                        flushWhenOpen(key, opened);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+                BATCHES.put(key, opened);
+                batch = opened;
+            }
+            batch.notifications.add(notification);
+            if (batch.notifications.size() >= Math.min(maxSize, MAX_ATTACHMENTS)) {
+                BATCHES.remove(key);
+                batch.timer.cancel(false);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            final Batch batch = full;
+            FLUSH_SCHEDULER.execute(new Runnable() {
+                public void run() {
+                    flush(batch);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends a batch whose window ended, unless it was already sent because it filled up.
+     */
+    private static void flushWhenOpen(String key, Batch batch) {
+        synchronized (BATCHES) {
+            if (BATCHES.get(key) != batch) {
+                return;
+            }
+            BATCHES.remove(key);
+        }
+        flush(batch);
+    }
+
+    private static void flush(Batch batch) {
+        try {
+            batch.flusher.flush(batch.notifications);
+        } catch (RuntimeException flushEx) {
+            System.err.printf("Slack notification batch of %d messages failed: %s%n", batch.notifications.size(), flushEx.getMessage());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker in front of a single webhook, so that a Slack outage does not make every notification wait for a
+ * failing request.
+ *
+ * The circuit opens after a number of consecutive timeouts, connection failures or 5xx responses. While it is open,
+ * messages are not sent at all. Once the open time has passed, a single probe message is let through: if Slack
+ * answers, the circuit closes again, otherwise it stays open for another open time. Breakers are shared by all plugin
+ * instances in the JVM and keyed by webhook URL. Like the webhook's {@link SlackRateLimiter}, a breaker keeps the
+ * threshold and open time it is first created with until Rundeck is restarted; notifications configured with other
+ * values for the same webhook share that breaker as it is.
+ */
+final class SlackCircuitBreaker {
+
+    /**
+     * State of the circuit.
+     */
+    enum State {
+        /** messages are sent */
+        CLOSED,
+        /** messages are rejected without being sent */
+        OPEN,
+        /** a probe message is on its way, other messages are rejected until it returns */
+        HALF_OPEN
+    }
+
+    private static final ConcurrentMap<String, SlackCircuitBreaker> BREAKERS = new ConcurrentHashMap<String, SlackCircuitBreaker>();
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long rejectedCount;
+
+    private SlackCircuitBreaker(int failureThreshold, long openNanos) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+    }
+
+    /**
+     * Returns the shared breaker of a webhook, creating it with the given settings on first use. The settings of an
+     * existing breaker are left as they are.
+     *
+     * @param webhookUrl webhook URL the breaker is keyed by
+     * @param failureThreshold number of consecutive failures opening the circuit
+     * @param openMillis time the circuit stays open before a probe message is sent
+     * @return shared breaker
+     */
+    static SlackCircuitBreaker forWebhook(String webhookUrl, int failureThreshold, long openMillis) {
+        if (failureThreshold < 1 || openMillis < 1) {
+            throw new IllegalArgumentException("Circuit breaker threshold and open time must be positive: [" + failureThreshold + ", " + openMillis + "].");
+        }
+        SlackCircuitBreaker breaker = BREAKERS.get(webhookUrl);
+        if (breaker == null) {
+            SlackCircuitBreaker created = new SlackCircuitBreaker(failureThreshold, TimeUnit.MILLISECONDS.toNanos(openMillis));
+            breaker = BREAKERS.putIfAbsent(webhookUrl, created);
+            if (breaker == null) {
+                return created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Asks whether a message may be sent. A caller that was let through must report the outcome with
+     * {@link #recordSuccess()}, {@link #recordFailure()} or {@link #recordNotSent()}.
+     *
+     * @return true if the message may be sent, false if the circuit is open
+     */
+    synchronized boolean tryAcquirePermission() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        long now = System.nanoTime();
+        // a probe that never reported back is replaced by a new one after another open time
+        if (now - openedAt >= openNanos) {
+            if (state == State.OPEN) {
+                System.err.printf("Slack webhook circuit breaker is half open, sending a probe message%n");
+            }
+            state = State.HALF_OPEN;
+            openedAt = now;
+            return true;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Records that Slack answered, whether or not it accepted the message.
+     */
+    synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            System.err.printf("Slack webhook circuit breaker closed after %d rejected messages%n", rejectedCount);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Records that Slack could not be reached or failed to process the message.
+     */
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                System.err.printf("Slack webhook circuit breaker opened after %d consecutive failures%n", consecutiveFailures);
+                rejectedCount = 0;
+            }
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records that a permitted message was not sent after all, like when the rate limit wait timed out.
+     */
+    synchronized void recordNotSent() {
+        if (state == State.HALF_OPEN) {
+            // let the next message probe instead
+            state = State.OPEN;
+            openedAt = System.nanoTime() - openNanos;
+        }
+    }
+
+    /**
+     * @return milliseconds until a probe message will be let through, 0 if the circuit is closed
+     */
+    synchronized long remainingOpenMillis() {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        long remainingNanos = openNanos - (System.nanoTime() - openedAt);
+        return remainingNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1 : 0;
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return number of messages rejected since the circuit last opened
+     */
+    synchronized long rejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @param webhookUrl webhook URL
+     * @return state of the webhook's circuit, {@link State#CLOSED} if no breaker was used for it
+     */
+    static State stateOf(String webhookUrl) {
+        SlackCircuitBreaker breaker = BREAKERS.get(webhookUrl);
+        return breaker != null ? breaker.state() : State.CLOSED;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suppresses repeated failure notifications of flapping jobs.
+ *
+ * The first notification for a job, trigger and set of failed nodes is sent and opens a window; identical
+ * notifications within the window are only counted. When the window ends, a single follow-up reports how often the
+ * notification was repeated. The cache is a bounded LRU map shared JVM-wide, so memory stays constant however many
+ * jobs there are; an evicted entry reports its repeats right away.
+ */
+final class SlackDedupeCache {
+
+    /** how often expired windows are looked for */
+    private static final long SWEEP_INTERVAL_MILLIS = 10000;
+
+    /**
+     * Sends the follow-up for suppressed repeats.
+     */
+    interface RepeatReporter {
+        /**
+         * @param trigger notification trigger
+         * @param executionData execution data of the last suppressed notification
+         * @param repeatCount number of suppressed notifications
+         */
+        void reportRepeats(SlackTrigger trigger, Map executionData, int repeatCount);
+    }
+
+    private static final class Window {
+
+        private final SlackTrigger trigger;
+        private final long endNanos;
+        private final RepeatReporter reporter;
+        private Map lastExecutionData;
+        private int repeats;
+
+        Window(SlackTrigger trigger, long endNanos, RepeatReporter reporter) {
+            this.trigger = trigger;
+            this.endNanos = endNanos;
+            this.reporter = reporter;
+        }
+
+        boolean isOpen(long now) {
+            return now - endNanos < 0;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    /** windows in access order, least recently used first */
+    private static final LinkedHashMap<String, Window> WINDOWS = new LinkedHashMap<String, Window>(256, 0.75f, true);
+
+    private static final ScheduledExecutorService REPORTER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "slack-dedupe");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        REPORTER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private SlackDedupeCache() {
+    }
+
+    /**
+     * Decides whether a notification is sent or suppressed as a repeat.
+     *
+     * @param scope webhook and channel the notification is sent to
+     * @param trigger notification trigger
+     * @param executionData job execution data, kept for the follow-up, so a copy that is not changed afterwards
+     * @param windowMillis length of the suppression window
+     * @param maxEntries maximum number of windows kept
+     * @param reporter sends the follow-up, if the notification opens a window
+     * @return true if the notification should be sent, false if it was suppressed
+     */
+    static boolean shouldSend(String scope, SlackTrigger trigger, Map executionData, long windowMillis, int maxEntries,
+                              RepeatReporter reporter) {
+        String key = key(scope, trigger, executionData);
+        long now = System.nanoTime();
+        List<Window> finished = new ArrayList<Window>();
+        boolean send;
+        synchronized (LOCK) {
+            Window window = WINDOWS.get(key);
+            if (window != null && window.isOpen(now)) {
+                window.repeats++;
+                window.lastExecutionData = executionData;
+                send = false;
+            } else {
+                if (window != null && window.repeats > 0) {
+                    finished.add(window);
+                }
+                WINDOWS.put(key, new Window(trigger, now + TimeUnit.MILLISECONDS.toNanos(windowMillis), reporter));
+                evictLeastRecentlyUsed(Math.max(1, maxEntries), finished);
+                send = true;
+            }
+        }
+        report(finished);
+        return send;
+    }
+
+    /**
+     * Removes the least recently used windows beyond the capacity, also when the capacity was lowered since they were
+     * added, collecting those with repeats to report.
+     */
+    private static void evictLeastRecentlyUsed(int maxEntries, List<Window> finished) {
+        Iterator<Window> leastRecentlyUsed = WINDOWS.values().iterator();
+        while (WINDOWS.size() > maxEntries) {
+            Window evicted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            if (evicted.repeats > 0) {
+                finished.add(evicted);
+            }
+        }
+    }
+
+    private static String key(String scope, SlackTrigger trigger, Map executionData) {
+        Object job = executionData.get("job");
+        Object jobId = job instanceof Map ? ((Map) job).get("id") : null;
+        if (jobId == null && job instanceof Map) {
+            jobId = executionData.get("project") + "/" + ((Map) job).get("group") + "/" + ((Map) job).get("name");
+        }
+        Object failedNodes = executionData.get("failedNodeListString");
+        String nodes = "";
+        if (failedNodes != null) {
+            String[] nodeNames = failedNodes.toString().split(",");
+            for (int i = 0; i < nodeNames.length; i++) {
+                nodeNames[i] = nodeNames[i].trim();
+            }
+            Arrays.sort(nodeNames);
+            nodes = Arrays.toString(nodeNames);
+        }
+        return scope + '\n' + jobId + '\n' + trigger.triggerName() + '\n' + nodes;
+    }
+
+    private static void sweep() {
+        long now = System.nanoTime();
+        List<Window> finished = new ArrayList<Window>();
+        synchronized (LOCK) {
+            Iterator<Window> windows = WINDOWS.values().iterator();
+            while (windows.hasNext()) {
+                Window window = windows.next();
+                if (!window.isOpen(now)) {
+                    windows.remove();
+                    if (window.repeats > 0) {
+                        finished.add(window);
+                    }
+                }
+            }
+        }
+        report(finished);
+    }
+
+    private static void report(final List<Window> finished) {
+        if (finished.isEmpty()) {
+            return;
+        }
+        REPORTER.execute(new Runnable() {
+            public void run() {
+                for (Window window : finished) {
+                    try {
+                        window.reporter.reportRepeats(window.trigger, window.lastExecutionData, window.repeats);
+                    } catch (RuntimeException reportEx) {
+                        System.err.printf("Slack notification repeat follow-up failed: %s%n", reportEx.getMessage());
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts job outcomes per project and job over a time window, and sends a single summary message when the window
+ * ends instead of one message per execution.
+ *
+ * Only the counters are kept, not the executions, so memory use depends on the number of jobs rather than on the
+ * number of notifications. Digests are shared JVM-wide and keyed by webhook and channel; the flusher of the
+ * notification that opened a digest sends it.
+ */
+final class SlackDigest {
+
+    /**
+     * Sends a completed digest.
+     */
+    interface Flusher {
+        /**
+         * @param model template model of the digest
+         * @param triggers triggers counted in the digest
+         */
+        void flush(Map<String, Object> model, Set<SlackTrigger> triggers);
+    }
+
+    private static final Map<String, SlackDigest> DIGESTS = new HashMap<String, SlackDigest>();
+
+    private static final ScheduledExecutorService FLUSH_SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "slack-digest-flush");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Flusher flusher;
+    private final long windowStart = System.currentTimeMillis();
+    private final Map<String, JobCounts> jobs = new LinkedHashMap<String, JobCounts>();
+
+    private SlackDigest(Flusher flusher) {
+        this.flusher = flusher;
+    }
+
+    private static final class JobCounts {
+
+        private final String project;
+        private final String name;
+        private final String group;
+        private final String href;
+        private final int[] counts = new int[SlackTrigger.values().length];
+
+        JobCounts(String project, String name, String group, String href) {
+            this.project = project;
+            this.name = name;
+            this.group = group;
+            this.href = href;
+        }
+    }
+
+    /**
+     * Counts a notification in the open digest for the key, opening one if needed.
+     *
+     * @param key webhook and channel the digest is sent to
+     * @param windowMillis time a new digest stays open
+     * @param flushOnFailure whether a failure sends the digest right away
+     * @param trigger notification trigger
+     * @param executionData job execution data
+     * @param flusher sends the digest, if the notification opens it
+     */
+    static void record(final String key, long windowMillis, boolean flushOnFailure, SlackTrigger trigger, Map executionData, Flusher flusher) {
+        SlackDigest due = null;
+        synchronized (DIGESTS) {
+            SlackDigest digest = DIGESTS.get(key);
+            if (digest == null) {
+                final SlackDigest opened = new SlackDigest(flusher);
+                FLUSH_SCHEDULER.schedule(new Runnable() {
+                    public void run() {
+                        flushWhenOpen(key, opened);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+                DIGESTS.put(key, opened);
+                digest = opened;
+            }
+            digest.count(trigger, executionData);
+            if (flushOnFailure && trigger == SlackTrigger.FAILURE) {
+                DIGESTS.remove(key);
+                due = digest;
+            }
+        }
+        if (due != null) {
+            final SlackDigest digest = due;
+            FLUSH_SCHEDULER.execute(new Runnable() {
+                public void run() {
+                    digest.flush();
+                }
+            });
+        }
+    }
+
+    private static void flushWhenOpen(String key, SlackDigest digest) {
+        synchronized (DIGESTS) {
+            if (DIGESTS.get(key) != digest) {
+                return;
+            }
+            DIGESTS.remove(key);
+        }
+        digest.flush();
+    }
+
+    /**
+     * Called with the DIGESTS lock held; a digest is only modified while it is open.
+     */
+    private void count(SlackTrigger trigger, Map executionData) {
+        Object job = executionData.get("job");
+        Map<?, ?> jobData = job instanceof Map ? (Map<?, ?>) job : Collections.<String, Object>emptyMap();
+        String project = stringValue(executionData.get("project"));
+        String name = stringValue(jobData.get("name"));
+        String group = stringValue(jobData.get("group"));
+        String jobId = stringValue(jobData.get("id"));
+        String jobKey = jobId != null ? jobId : project + "/" + group + "/" + name;
+
+        JobCounts counts = jobs.get(jobKey);
+        if (counts == null) {
+            counts = new JobCounts(project, name, group, stringValue(jobData.get("href")));
+            jobs.put(jobKey, counts);
+        }
+        counts.counts[trigger.ordinal()]++;
+    }
+
+    private static String stringValue(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    private void flush() {
+        try {
+            flusher.flush(toModel(), triggers());
+        } catch (RuntimeException flushEx) {
+            System.err.printf("Slack notification digest for %d jobs failed: %s%n", jobs.size(), flushEx.getMessage());
+        }
+    }
+
+    private Set<SlackTrigger> triggers() {
+        Set<SlackTrigger> triggers = EnumSet.noneOf(SlackTrigger.class);
+        for (JobCounts counts : jobs.values()) {
+            for (SlackTrigger trigger : SlackTrigger.values()) {
+                if (counts.counts[trigger.ordinal()] > 0) {
+                    triggers.add(trigger);
+                }
+            }
+        }
+        return triggers;
+    }
+
+    /**
+     * Builds the template model: the window, the totals per trigger name and a list of jobs with their counts per
+     * trigger name. Triggers that did not occur are left out.
+     */
+    private Map<String, Object> toModel() {
+        Map<SlackTrigger, Integer> totals = new EnumMap<SlackTrigger, Integer>(SlackTrigger.class);
+        List<Map<String, Object>> jobList = new ArrayList<Map<String, Object>>(jobs.size());
+        for (JobCounts counts : jobs.values()) {
+            Map<String, Object> countsByTrigger = new LinkedHashMap<String, Object>();
+            for (SlackTrigger trigger : SlackTrigger.values()) {
+                int count = counts.counts[trigger.ordinal()];
+                if (count > 0) {
+                    countsByTrigger.put(trigger.triggerName(), count);
+                    Integer total = totals.get(trigger);
+                    totals.put(trigger, total == null ? count : total + count);
+                }
+            }
+            Map<String, Object> job = new HashMap<String, Object>();
+            job.put("project", counts.project);
+            job.put("name", counts.name);
+            if (counts.group != null) {
+                job.put("group", counts.group);
+            }
+            if (counts.href != null) {
+                job.put("href", counts.href);
+            }
+            job.put("counts", countsByTrigger);
+            jobList.add(job);
+        }
+
+        Map<String, Object> totalsByTrigger = new LinkedHashMap<String, Object>();
+        for (Map.Entry<SlackTrigger, Integer> total : totals.entrySet()) {
+            totalsByTrigger.put(total.getKey().triggerName(), total.getValue());
+        }
+
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("windowStart", new Date(windowStart));
+        model.put("windowEnd", new Date());
+        model.put("jobs", jobList);
+        model.put("totals", totalsByTrigger);
+        model.put("color", totals.containsKey(SlackTrigger.FAILURE) ? SlackTrigger.FAILURE.color() : SlackTrigger.SUCCESS.color());
+        return model;
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory queue of pending Slack deliveries. At most a fixed number of deliveries are sent at the same time,
+ * each handed to a pooled sender thread: a daemon platform thread, or a virtual thread on Java 21 and later.
+ *
+ * The queue has one FIFO lane per trigger, and the next delivery is taken from the most urgent lane first, so a failure
+ * notification never waits behind a backlog of success and start notifications. A delivery that waited longer than
+ * the starvation limit is taken before more urgent ones, so the less urgent lanes keep moving under a steady stream of
+ * failures.
+ *
+ * Rundeck creates a new plugin instance for every notification, so dispatchers are shared JVM-wide and
+ * looked up by their settings.
+ *
+ * @see #forSettings(int, int, OverflowPolicy, long)
+ */
+final class SlackDispatcher implements SlackDispatcherMetricsMXBean {
+
+    /**
+     * Queued delivery, told when it is discarded to make room for a newer one.
+     */
+    interface Delivery extends Runnable {
+        void discarded();
+    }
+
+    /**
+     * What to do with a delivery when the queue is full. The dropping policies first discard the oldest delivery of
+     * the least urgent lane if it is less urgent than the one being submitted.
+     */
+    enum OverflowPolicy {
+        /** wait on the calling thread until there is room in the queue */
+        BLOCK("block"),
+        /** discard the oldest queued delivery of the same lane to make room */
+        DROP_OLDEST("drop-oldest"),
+        /** discard the delivery being submitted */
+        DROP_NEWEST("drop-newest");
+
+        private final String policyName;
+
+        OverflowPolicy(String policyName) {
+            this.policyName = policyName;
+        }
+
+        static OverflowPolicy forName(String policyName) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.policyName.equals(policyName)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown overflow policy: [" + policyName + "].");
+        }
+    }
+
+    /**
+     * Triggers in the order their lanes are served, most urgent first.
+     */
+    static final List<SlackTrigger> LANES = Collections.unmodifiableList(Arrays.asList(
+            SlackTrigger.FAILURE, SlackTrigger.ONRETRY, SlackTrigger.AVERAGE, SlackTrigger.SUCCESS, SlackTrigger.START));
+
+    private static final ConcurrentMap<String, SlackDispatcher> DISPATCHERS = new ConcurrentHashMap<String, SlackDispatcher>();
+
+    private static final class Queued {
+        final Delivery delivery;
+        final long queuedNanos;
+
+        Queued(Delivery delivery, long queuedNanos) {
+            this.delivery = delivery;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final List<ArrayDeque<Queued>> lanes = new ArrayList<ArrayDeque<Queued>>(LANES.size());
+    private final int capacity;
+    private int size;
+    private final ExecutorService senders;
+    private final int workers;
+    private int inFlight;
+
+    private final OverflowPolicy overflowPolicy;
+    private final long starvationNanos;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong promoted = new AtomicLong();
+    private final AtomicLongArray laneDropped = new AtomicLongArray(LANES.size());
+    private final List<SlackHistogram> laneWait = new ArrayList<SlackHistogram>(LANES.size());
+
+    private SlackDispatcher(int capacity, int workers, OverflowPolicy overflowPolicy, long starvationMillis, String name) {
+        this.capacity = capacity;
+        this.workers = workers;
+        this.senders = SlackThreads.newSenderExecutor(name + "-");
+        this.overflowPolicy = overflowPolicy;
+        this.starvationNanos = starvationMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(starvationMillis) : Long.MAX_VALUE;
+        for (int i = 0; i < LANES.size(); i++) {
+            lanes.add(new ArrayDeque<Queued>());
+            laneWait.add(new SlackHistogram());
+        }
+    }
+
+    /**
+     * Returns the shared dispatcher for the given settings, starting it on first use.
+     *
+     * @param capacity maximum number of queued deliveries, over all lanes
+     * @param workers maximum number of deliveries sent at the same time
+     * @param overflowPolicy what to do when the queue is full
+     * @param starvationMillis wait after which a delivery is taken before more urgent ones, 0 to always serve the
+     *                         most urgent lane first
+     * @return shared dispatcher
+     */
+    static SlackDispatcher forSettings(final int capacity, final int workers, final OverflowPolicy overflowPolicy, final long starvationMillis) {
+        if (capacity < 1 || workers < 1) {
+            throw new IllegalArgumentException("Queue capacity and worker count must be positive: [" + capacity + ", " + workers + "].");
+        }
+        final String key = capacity + "/" + workers + "/" + overflowPolicy.policyName + "/" + Math.max(0, starvationMillis);
+        SlackDispatcher dispatcher = DISPATCHERS.get(key);
+        if (dispatcher == null) {
+            synchronized (DISPATCHERS) {
+                dispatcher = DISPATCHERS.get(key);
+                if (dispatcher == null) {
+                    dispatcher = new SlackDispatcher(capacity, workers, overflowPolicy, starvationMillis, "slack-dispatch-" + key);
+                    DISPATCHERS.put(key, dispatcher);
+                    SlackMetrics.register("Dispatcher", key, dispatcher);
+                }
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * @return every dispatcher started so far, by its settings
+     */
+    static Map<String, SlackDispatcher> all() {
+        return new TreeMap<String, SlackDispatcher>(DISPATCHERS);
+    }
+
+    /**
+     * Queues a delivery in the lane of its trigger, applying the overflow policy when the queue is full.
+     *
+     * @param trigger trigger deciding the lane, the most urgent one wins for messages about several notifications
+     * @param delivery delivery to run on a sender thread
+     * @return true if the delivery was queued, false if it was discarded
+     * @throws InterruptedException if interrupted while waiting for room in the queue, the delivery was not queued
+     */
+    boolean submit(SlackTrigger trigger, Delivery delivery) throws InterruptedException {
+        final int lane = LANES.indexOf(trigger);
+        Queued evicted = null;
+        Delivery next = null;
+        lock.lock();
+        try {
+            if (size == capacity) {
+                int lowest = lowestNonEmptyLane();
+                if (overflowPolicy != OverflowPolicy.BLOCK
+                        && (lowest > lane || (lowest == lane && overflowPolicy == OverflowPolicy.DROP_OLDEST))) {
+                    evicted = lanes.get(lowest).pollFirst();
+                    laneDropped.incrementAndGet(lowest);
+                    size--;
+                } else if (overflowPolicy == OverflowPolicy.BLOCK) {
+                    while (size == capacity) {
+                        notFull.await();
+                    }
+                } else {
+                    laneDropped.incrementAndGet(lane);
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+            lanes.get(lane).addLast(new Queued(delivery, System.nanoTime()));
+            size++;
+            if (inFlight < workers) {
+                inFlight++;
+                next = take();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            // evictions are counted per lane rather than logged, a full queue would flood the log
+            dropped.incrementAndGet();
+            evicted.delivery.discarded();
+        }
+        if (next != null) {
+            senders.execute(new Sender(next));
+        }
+        return true;
+    }
+
+    /**
+     * Takes the delivery to run next: the head of the most urgent non-empty lane, unless the head of a less urgent
+     * lane waited longer than the starvation limit, in which case the longest waiting of those goes first. Must be
+     * called holding the lock, with a non-empty queue.
+     */
+    private Delivery take() {
+        long now = System.nanoTime();
+        int lane = 0;
+        while (lanes.get(lane).isEmpty()) {
+            lane++;
+        }
+        int starved = -1;
+        long longestWait = starvationNanos - 1;
+        for (int i = lane + 1; i < lanes.size(); i++) {
+            Queued head = lanes.get(i).peekFirst();
+            if (head != null && now - head.queuedNanos > longestWait) {
+                starved = i;
+                longestWait = now - head.queuedNanos;
+            }
+        }
+        if (starved >= 0) {
+            promoted.incrementAndGet();
+            lane = starved;
+        }
+        Queued next = lanes.get(lane).pollFirst();
+        size--;
+        notFull.signal();
+        laneWait.get(lane).record(TimeUnit.NANOSECONDS.toMicros(now - next.queuedNanos));
+        return next.delivery;
+    }
+
+    private int lowestNonEmptyLane() {
+        int lane = lanes.size() - 1;
+        while (lanes.get(lane).isEmpty()) {
+            lane--;
+        }
+        return lane;
+    }
+
+    /**
+     * @return number of deliveries currently waiting in the queue
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of deliveries discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of deliveries taken before more urgent ones because they reached the starvation limit
+     */
+    public long getStarvationPromotedCount() {
+        return promoted.get();
+    }
+
+    /**
+     * @return number of deliveries waiting in the queue, by trigger name
+     */
+    public Map<String, Integer> getLaneDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+        lock.lock();
+        try {
+            for (int i = 0; i < LANES.size(); i++) {
+                depths.put(LANES.get(i).triggerName(), lanes.get(i).size());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return depths;
+    }
+
+    /**
+     * @return number of deliveries discarded because the queue was full, by trigger name
+     */
+    public Map<String, Long> getLaneDroppedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < LANES.size(); i++) {
+            counts.put(LANES.get(i).triggerName(), laneDropped.get(i));
+        }
+        return counts;
+    }
+
+    /**
+     * @return 99th percentile of the time deliveries waited in the queue in microseconds, by trigger name
+     */
+    public Map<String, Long> getLaneWaitP99Micros() {
+        Map<String, Long> waits = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < LANES.size(); i++) {
+            waits.put(LANES.get(i).triggerName(), laneWait.get(i).percentile(0.99));
+        }
+        return waits;
+    }
+
+    /**
+     * @param trigger trigger of the lane
+     * @return time deliveries of the lane waited in the queue, in microseconds
+     */
+    SlackHistogram laneWait(SlackTrigger trigger) {
+        return laneWait.get(LANES.indexOf(trigger));
+    }
+
+    /**
+     * Runs a delivery, then keeps taking queued ones until the queue is empty, so a busy dispatcher reuses its
+     * sender threads.
+     */
+    private class Sender implements Runnable {
+        private Delivery delivery;
+
+        Sender(Delivery delivery) {
+            this.delivery = delivery;
+        }
+
+        public void run() {
+            while (delivery != null) {
+                try {
+                    delivery.run();
+                } catch (Throwable t) {
+                    // there is no plugin logger available outside of postNotification
+                    System.err.printf("Slack notification delivery failed: %s%n", t.getMessage());
+                }
+                lock.lock();
+                try {
+                    if (size > 0) {
+                        delivery = take();
+                    } else {
+                        inFlight--;
+                        delivery = null;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
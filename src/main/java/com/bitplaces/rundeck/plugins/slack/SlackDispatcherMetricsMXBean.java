@@ -0,0 +1,54 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.Map;
+
+/**
+ * JMX view of an asynchronous delivery queue, registered as
+ * {@code com.bitplaces.rundeck.plugins.slack:type=Dispatcher,name="<capacity>/<workers>/<overflow policy>/<starvation limit>"}.
+ */
+public interface SlackDispatcherMetricsMXBean {
+
+    /**
+     * @return number of deliveries waiting in the queue
+     */
+    int getQueueDepth();
+
+    /**
+     * @return number of deliveries discarded because the queue was full
+     */
+    long getDroppedCount();
+
+    /**
+     * @return number of deliveries taken before more urgent ones because they reached the starvation limit
+     */
+    long getStarvationPromotedCount();
+
+    /**
+     * @return number of deliveries waiting in the queue, by trigger name
+     */
+    Map<String, Integer> getLaneDepths();
+
+    /**
+     * @return number of deliveries discarded because the queue was full, by trigger name
+     */
+    Map<String, Long> getLaneDroppedCounts();
+
+    /**
+     * @return 99th percentile of the time deliveries waited in the queue in microseconds, by trigger name
+     */
+    Map<String, Long> getLaneWaitP99Micros();
+}
@@ -0,0 +1,129 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Sends one rendered message to several webhooks and channels at once.
+ *
+ * Every destination is sent to on a pooled sender thread of its own, a virtual thread on Java 21 and later. The caller waits
+ * until a quorum of destinations succeeded, or until so many failed that the quorum can no longer be reached;
+ * destinations still in flight then finish in the background.
+ */
+final class SlackFanOut {
+
+    private static final ExecutorService SENDERS = SlackThreads.newSenderExecutor("slack-fan-out-");
+
+    /**
+     * Webhook and optional channel a message is sent to.
+     */
+    static final class Destination {
+
+        private final String webhookUrl;
+        private final String channel;
+
+        Destination(String webhookUrl, String channel) {
+            this.webhookUrl = webhookUrl;
+            this.channel = channel;
+        }
+
+        String webhookUrl() {
+            return webhookUrl;
+        }
+
+        /**
+         * @return channel to post to, or null for the webhook's default channel
+         */
+        String channel() {
+            return channel;
+        }
+    }
+
+    private SlackFanOut() {
+    }
+
+    /**
+     * Parses a list of additional destinations, separated by commas or new lines, each a webhook token optionally
+     * followed by a channel, like {@code T0000/B0000/XXXX #ops-alerts}.
+     *
+     * @param webhookBaseUrl base URL the tokens are appended to
+     * @param destinations destination list, may be null
+     * @return parsed destinations, empty if there are none
+     */
+    static List<Destination> parse(String webhookBaseUrl, String destinations) {
+        if (destinations == null || destinations.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Destination> parsed = new ArrayList<Destination>();
+        for (String destination : destinations.split("[,\\n]")) {
+            String[] parts = destination.trim().split("\\s+");
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            if (parts.length > 2) {
+                throw new IllegalArgumentException("Invalid destination, expected a webhook token and an optional channel: [" + destination.trim() + "].");
+            }
+            parsed.add(new Destination(webhookBaseUrl + "/" + parts[0], parts.length > 1 ? parts[1] : null));
+        }
+        return parsed;
+    }
+
+    /**
+     * Runs the sends concurrently and waits for a quorum of them.
+     *
+     * @param sends one send per destination, returning true if the message was delivered or queued
+     * @param quorum number of sends that have to succeed, all of them if 0 or more than there are
+     * @return true once the quorum succeeded
+     * @throws SlackNotificationPluginException if the quorum can no longer be reached
+     */
+    static boolean sendAll(List<Callable<Boolean>> sends, int quorum) {
+        int required = quorum <= 0 || quorum > sends.size() ? sends.size() : quorum;
+        CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(SENDERS);
+        for (Callable<Boolean> send : sends) {
+            completion.submit(send);
+        }
+        int succeeded = 0;
+        List<String> failures = new ArrayList<String>();
+        try {
+            while (succeeded < required) {
+                try {
+                    if (completion.take().get()) {
+                        succeeded++;
+                    } else {
+                        failures.add("message not queued");
+                    }
+                } catch (ExecutionException executionEx) {
+                    failures.add(String.valueOf(executionEx.getCause().getMessage()));
+                }
+                if (failures.size() > sends.size() - required) {
+                    throw new SlackNotificationPluginException(failures.size() + " of " + sends.size()
+                            + " Slack destinations failed, " + required + " had to succeed: " + failures + ".");
+                }
+            }
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new SlackNotificationPluginException("Interrupted while waiting for Slack destinations: [" + interruptedEx.getMessage() + "].", interruptedEx);
+        }
+        return true;
+    }
+}
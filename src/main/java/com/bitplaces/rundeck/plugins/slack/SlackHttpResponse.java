@@ -0,0 +1,91 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * HTTP response received from a Slack incoming webhook.
+ */
+final class SlackHttpResponse {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** read buffer reused by every response read on a thread; Slack answers with a few bytes like "ok" */
+    private static final ThreadLocal<byte[]> READ_BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
+
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final String body;
+
+    /**
+     * Constructor.
+     *
+     * @param statusCode HTTP status code
+     * @param headers response headers, keyed by lower case header name
+     * @param body response body
+     */
+    SlackHttpResponse(int statusCode, Map<String, String> headers, String body) {
+        this.statusCode = statusCode;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @param name header name, case insensitive
+     * @return header value, or null if the header is not present
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    String getBody() {
+        return body;
+    }
+
+    /**
+     * Reads a response body to its end.
+     *
+     * @param in response stream
+     * @return body decoded as UTF-8
+     * @throws IOException if reading fails
+     */
+    static String readBody(InputStream in) throws IOException {
+        byte[] buffer = READ_BUFFERS.get();
+        int length = 0;
+        int count;
+        while ((count = in.read(buffer, length, buffer.length - length)) >= 0) {
+            length += count;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length << 1);
+            }
+        }
+        return new String(buffer, 0, length, UTF_8);
+    }
+}
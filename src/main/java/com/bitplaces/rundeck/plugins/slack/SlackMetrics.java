@@ -0,0 +1,328 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one webhook, exported as an MBean of the platform MBean server.
+ *
+ * Metrics are shared by all plugin instances in the JVM and keyed by webhook URL. They are labelled with the
+ * webhook's host and path, the secret last part of the token replaced by a short hash, so that monitoring never
+ * sees a usable webhook URL.
+ */
+final class SlackMetrics implements SlackWebhookMetricsMXBean {
+
+    static final String JMX_DOMAIN = "com.bitplaces.rundeck.plugins.slack";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** distinct failure reasons kept, so that unexpected Slack responses cannot grow the map without bounds */
+    private static final int MAX_FAILURE_REASONS = 32;
+    private static final int MAX_FAILURE_REASON_LENGTH = 64;
+
+    private static final ConcurrentMap<String, SlackMetrics> METRICS = new ConcurrentHashMap<String, SlackMetrics>();
+
+    private final String webhookUrl;
+    private final String webhook;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder circuitOpen = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentMap<String, LongAdder> responseCodes = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentMap<String, LongAdder> failureReasons = new ConcurrentHashMap<String, LongAdder>();
+    private final SlackHistogram renderTime = new SlackHistogram();
+    private final SlackHistogram httpTime = new SlackHistogram();
+
+    private SlackMetrics(String webhookUrl) {
+        this.webhookUrl = webhookUrl;
+        this.webhook = label(webhookUrl);
+    }
+
+    /**
+     * Returns the shared metrics of a webhook, registering their MBean on first use.
+     *
+     * @param webhookUrl webhook URL the metrics are keyed by
+     * @return shared metrics
+     */
+    static SlackMetrics forWebhook(String webhookUrl) {
+        SlackMetrics metrics = METRICS.get(webhookUrl);
+        if (metrics == null) {
+            SlackMetrics created = new SlackMetrics(webhookUrl);
+            metrics = METRICS.putIfAbsent(webhookUrl, created);
+            if (metrics == null) {
+                register("Webhook", created.webhook, created);
+                return created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return metrics of every webhook used so far
+     */
+    static Collection<SlackMetrics> all() {
+        return METRICS.values();
+    }
+
+    /**
+     * Registers an MBean with the platform MBean server, replacing one registered under the same name before, like
+     * by an earlier version of the plugin.
+     *
+     * @param type value of the {@code type} key of the object name
+     * @param name value of the {@code name} key of the object name, quoted if needed
+     * @param mbean MBean to register
+     */
+    static void register(String type, String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (JMException jmxEx) {
+            System.err.printf("Could not register Slack notification metrics MBean %s: %s%n", name, jmxEx.getMessage());
+        } catch (SecurityException securityEx) {
+            System.err.printf("Could not register Slack notification metrics MBean %s: %s%n", name, securityEx.getMessage());
+        }
+    }
+
+    /**
+     * @return webhook host and path, with the last path segment, the secret part of the token, replaced by a hash
+     */
+    static String label(String webhookUrl) {
+        String hostAndPath;
+        try {
+            URL url = new URL(webhookUrl);
+            hostAndPath = url.getHost() + (url.getPort() != -1 ? ":" + url.getPort() : "") + url.getPath();
+        } catch (MalformedURLException malformedUrlEx) {
+            hostAndPath = webhookUrl;
+        }
+        int lastSlash = hostAndPath.lastIndexOf('/');
+        return hostAndPath.substring(0, lastSlash + 1) + shortHash(hostAndPath.substring(lastSlash + 1));
+    }
+
+    private static String shortHash(String secret) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(UTF_8));
+            StringBuilder hash = new StringBuilder(8);
+            for (int i = 0; i < 4; i++) {
+                hash.append(Character.forDigit((digest[i] >> 4) & 0x0F, 16)).append(Character.forDigit(digest[i] & 0x0F, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException noSuchAlgorithmEx) {
+            return "********";
+        }
+    }
+
+    void recordRenderTime(long nanos) {
+        renderTime.record(nanos / 1000);
+    }
+
+    void queued() {
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Records that a queued delivery left the asynchronous delivery queue, to be sent or discarded.
+     */
+    void dequeued() {
+        queued.decrementAndGet();
+    }
+
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the end of an HTTP request and its duration.
+     *
+     * @param nanos duration of the request
+     */
+    void requestFinished(long nanos) {
+        inFlight.decrementAndGet();
+        httpTime.record(nanos / 1000);
+    }
+
+    void recordResponse(int statusCode) {
+        increment(responseCodes, Integer.toString(statusCode));
+    }
+
+    void recordSent() {
+        sent.increment();
+    }
+
+    /**
+     * Records a failed attempt.
+     *
+     * @param reason Slack response, or failure category if Slack did not answer
+     */
+    void recordFailedAttempt(String reason) {
+        if (reason.isEmpty()) {
+            reason = "empty_response";
+        } else if (reason.length() > MAX_FAILURE_REASON_LENGTH) {
+            reason = reason.substring(0, MAX_FAILURE_REASON_LENGTH);
+        }
+        if (failureReasons.size() >= MAX_FAILURE_REASONS && !failureReasons.containsKey(reason)) {
+            reason = "other";
+        }
+        increment(failureReasons, reason);
+    }
+
+    void recordFailed() {
+        failed.increment();
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    void recordDropped() {
+        dropped.increment();
+    }
+
+    void recordCircuitOpen() {
+        circuitOpen.increment();
+    }
+
+    private static void increment(ConcurrentMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.increment();
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, LongAdder> counters) {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().sum());
+        }
+        return snapshot;
+    }
+
+    public String getWebhook() {
+        return webhook;
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getCircuitOpenCount() {
+        return circuitOpen.sum();
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    public String getCircuitState() {
+        return SlackCircuitBreaker.stateOf(webhookUrl).name();
+    }
+
+    public Map<String, Long> getResponseCodes() {
+        return snapshot(responseCodes);
+    }
+
+    /**
+     * @return HTTP times recorded so far, in microseconds
+     */
+    SlackHistogram httpTime() {
+        return httpTime;
+    }
+
+    /**
+     * @return render times recorded so far, in microseconds
+     */
+    SlackHistogram renderTime() {
+        return renderTime;
+    }
+
+    public Map<String, Long> getFailureReasons() {
+        return snapshot(failureReasons);
+    }
+
+    public long getRenderTimeP50Micros() {
+        return renderTime.percentile(0.5);
+    }
+
+    public long getRenderTimeP90Micros() {
+        return renderTime.percentile(0.9);
+    }
+
+    public long getRenderTimeP99Micros() {
+        return renderTime.percentile(0.99);
+    }
+
+    public long getRenderTimeMaxMicros() {
+        return renderTime.max();
+    }
+
+    public long getHttpTimeP50Micros() {
+        return httpTime.percentile(0.5);
+    }
+
+    public long getHttpTimeP90Micros() {
+        return httpTime.percentile(0.9);
+    }
+
+    public long getHttpTimeP99Micros() {
+        return httpTime.percentile(0.99);
+    }
+
+    public long getHttpTimeMaxMicros() {
+        return httpTime.max();
+    }
+}
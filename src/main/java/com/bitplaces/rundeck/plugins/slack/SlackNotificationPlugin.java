@@ -19,16 +19,21 @@ package com.bitplaces.rundeck.plugins.slack;
 
 import com.dtolabs.rundeck.core.plugins.Plugin;
 import com.dtolabs.rundeck.core.plugins.configuration.PropertyScope;
+import com.dtolabs.rundeck.core.plugins.configuration.StringRenderingConstants;
 import com.dtolabs.rundeck.plugins.descriptions.PluginDescription;
 import com.dtolabs.rundeck.plugins.descriptions.PluginProperty;
 import com.dtolabs.rundeck.plugins.notification.NotificationPlugin;
 import com.dtolabs.rundeck.plugins.descriptions.Password;
+import com.dtolabs.rundeck.plugins.descriptions.RenderingOption;
+import com.dtolabs.rundeck.plugins.descriptions.SelectValues;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.*;
 
 import freemarker.cache.ClassTemplateLoader;
@@ -48,21 +53,10 @@ import freemarker.template.TemplateException;
 @PluginDescription(title="Slack Incoming WebHook", description="Sends Rundeck Notifications to Slack")
 public class SlackNotificationPlugin implements NotificationPlugin {
 
-    private static final String SLACK_MESSAGE_COLOR_GREEN = "good";
-    private static final String SLACK_MESSAGE_COLOR_YELLOW = "warning";
-    private static final String SLACK_MESSAGE_COLOR_RED = "danger";
-
     private static final String SLACK_MESSAGE_TEMPLATE = "slack-incoming-message.ftl";
+    private static final String SLACK_BATCH_TEMPLATE = "slack-incoming-batch.ftl";
+    private static final String SLACK_DIGEST_TEMPLATE = "slack-incoming-digest.ftl";
 
-    private static final String TRIGGER_START = "start";
-    private static final String TRIGGER_SUCCESS = "success";
-    private static final String TRIGGER_FAILURE = "failure";
-    private static final String TRIGGER_AVERAGE = "avgduration";
-    private static final String TRIGGER_ONRETRY = "retryablefailure";
-
-    private static final Map<String, SlackNotificationData> TRIGGER_NOTIFICATION_DATA = new HashMap<String, SlackNotificationData>();
-
-    private static final Configuration FREEMARKER_CFG = new Configuration();
 
     @PluginProperty(title = "WebHook Base URL",
                     description = "Slack Incoming WebHook Base URL",
@@ -76,11 +70,209 @@ public class SlackNotificationPlugin implements NotificationPlugin {
                     scope=PropertyScope.Instance)
     private String webhook_token;
 
+    @Password
+    @PluginProperty(title = "WebHook Token Pool",
+                    description = "Further webhook tokens posting to the same channel, separated by commas; messages are spread over WebHook Token and these, as Slack rate limits each webhook on its own (optional)",
+                    scope=PropertyScope.Instance)
+    private String webhook_token_pool;
+
+    @SelectValues(values = {"consistent-hash", "least-loaded"})
+    @PluginProperty(title = "Token Selection",
+                    description = "How the webhook of the token pool is picked: consistent-hash keeps the messages of a job on one webhook and in order, least-loaded takes the webhook with the shortest rate limit wait",
+                    defaultValue = "consistent-hash",
+                    scope=PropertyScope.Instance)
+    private String token_selection;
+
     @PluginProperty(title = "Slack Channel",
                     description = "Slack Channel, like #channel-name (optional)",
                     scope=PropertyScope.Instance)
     private String slack_channel;
 
+    @PluginProperty(title = "Additional Destinations",
+                    description = "Further webhook tokens every message is also sent to, separated by commas, each optionally followed by a channel, like T0000/B0000/XXXX #ops-alerts (optional)",
+                    scope=PropertyScope.Instance)
+    private String additional_destinations;
+
+    @PluginProperty(title = "Destination Quorum",
+                    description = "Number of destinations a message has to be delivered to for the notification to succeed, 0 requires all of them",
+                    defaultValue = "0",
+                    scope=PropertyScope.Instance)
+    private int destination_quorum;
+
+    @PluginProperty(title = "Routing Rules",
+                    description = "Rules deciding where a notification is sent, one per line, the first matching rule wins, like: trigger=failure group=ops/* -> #ops-alerts. Conditions on trigger, project, group and job; targets are a channel, a webhook token with an optional channel, or drop (optional)",
+                    scope=PropertyScope.Instance)
+    @RenderingOption(key = StringRenderingConstants.DISPLAY_TYPE_KEY, value = "MULTI_LINE")
+    private String routing_rules;
+
+    @SelectValues(values = {"form", "json"})
+    @PluginProperty(title = "Payload Format",
+                    description = "Post the message as a URL-encoded payload form field, or as a UTF-8 JSON request body",
+                    defaultValue = "form",
+                    scope=PropertyScope.Instance)
+    private String payload_format;
+
+    @PluginProperty(title = "Asynchronous Delivery",
+                    description = "Queue the Slack message and return immediately instead of waiting for Slack to respond",
+                    defaultValue = "false",
+                    scope=PropertyScope.Instance)
+    private boolean async_dispatch;
+
+    @PluginProperty(title = "Queue Capacity",
+                    description = "Maximum number of messages waiting for asynchronous delivery",
+                    defaultValue = "1000",
+                    scope=PropertyScope.Instance)
+    private int async_queue_capacity;
+
+    @PluginProperty(title = "Delivery Workers",
+                    description = "Maximum number of queued messages sent to Slack at the same time",
+                    defaultValue = "2",
+                    scope=PropertyScope.Instance)
+    private int async_workers;
+
+    @SelectValues(values = {"block", "drop-oldest", "drop-newest"})
+    @PluginProperty(title = "Queue Overflow Policy",
+                    description = "What to do when the delivery queue is full: wait for room, drop the oldest queued message, or drop the new message",
+                    defaultValue = "block",
+                    scope=PropertyScope.Instance)
+    private String async_overflow_policy;
+
+    @PluginProperty(title = "Queue Starvation Limit",
+                    description = "Seconds after which a queued message is sent before messages of more urgent triggers, 0 always sends failures first, then retryable failures, average duration exceeded, successes and starts",
+                    defaultValue = "30",
+                    scope=PropertyScope.Instance)
+    private int async_starvation_limit;
+
+    @PluginProperty(title = "Repeat Suppression Window",
+                    description = "Minutes during which identical failure notifications of a job are counted instead of sent, followed by one \"repeated N times\" message, 0 disables suppression",
+                    defaultValue = "0",
+                    scope=PropertyScope.Instance)
+    private int dedupe_window;
+
+    @PluginProperty(title = "Repeat Suppression Capacity",
+                    description = "Maximum number of job failures remembered for repeat suppression, least recently seen are forgotten first",
+                    defaultValue = "10000",
+                    scope=PropertyScope.Instance)
+    private int dedupe_max_entries;
+
+    @PluginProperty(title = "Digest Window",
+                    description = "Minutes over which job outcomes are counted per project and job and sent as one summary message, 0 disables the digest",
+                    defaultValue = "0",
+                    scope=PropertyScope.Instance)
+    private int digest_window;
+
+    @PluginProperty(title = "Send Digest on Failure",
+                    description = "Send the digest right away when a job fails, instead of waiting for the end of the window",
+                    defaultValue = "false",
+                    scope=PropertyScope.Instance)
+    private boolean digest_flush_on_failure;
+
+    @PluginProperty(title = "Batch Window",
+                    description = "Seconds during which notifications for the same webhook and channel are collected into one Slack message, 0 sends every notification on its own",
+                    defaultValue = "0",
+                    scope=PropertyScope.Instance)
+    private int batch_window;
+
+    @PluginProperty(title = "Batch Size",
+                    description = "Maximum number of notifications in one Slack message, at most 100",
+                    defaultValue = "20",
+                    scope=PropertyScope.Instance)
+    private int batch_max_size;
+
+    @PluginProperty(title = "Rate Limit",
+                    description = "Maximum number of messages per second sent to the webhook, shared by all notifications using it, 0 disables the limit",
+                    defaultValue = "1",
+                    scope=PropertyScope.Instance)
+    private int rate_limit;
+
+    @PluginProperty(title = "Rate Limit Burst",
+                    description = "Number of messages that may be sent to the webhook back to back before the rate limit applies",
+                    defaultValue = "5",
+                    scope=PropertyScope.Instance)
+    private int rate_limit_burst;
+
+    @PluginProperty(title = "Rate Limit Max Wait",
+                    description = "Maximum number of seconds a message waits for the rate limit, a message that would wait longer fails, or is retried later if retries are enabled",
+                    defaultValue = "5",
+                    scope=PropertyScope.Instance)
+    private int rate_limit_max_wait;
+
+    @PluginProperty(title = "Connect Timeout",
+                    description = "Seconds to wait for a connection to Slack to be established",
+                    defaultValue = "10",
+                    scope=PropertyScope.Instance)
+    private int connect_timeout;
+
+    @PluginProperty(title = "Read Timeout",
+                    description = "Seconds to wait for Slack to respond",
+                    defaultValue = "30",
+                    scope=PropertyScope.Instance)
+    private int read_timeout;
+
+    @PluginProperty(title = "Notification Timeout",
+                    description = "Maximum number of seconds each delivery attempt may take, including waiting for the rate limit; every retry gets the full time again, Retry Deadline bounds the delivery as a whole",
+                    defaultValue = "60",
+                    scope=PropertyScope.Instance)
+    private int notification_timeout;
+
+    @PluginProperty(title = "Delivery Attempts",
+                    description = "Maximum number of attempts to deliver a message when Slack is unavailable or rate limiting, 1 disables retries",
+                    defaultValue = "3",
+                    scope=PropertyScope.Instance)
+    private int retry_max_attempts;
+
+    @PluginProperty(title = "Retry Deadline",
+                    description = "Seconds after the first delivery attempt after which a message is no longer retried",
+                    defaultValue = "300",
+                    scope=PropertyScope.Instance)
+    private int retry_deadline;
+
+    @PluginProperty(title = "Circuit Breaker Threshold",
+                    description = "Number of consecutive failures to reach Slack after which messages are no longer sent for a while, 0 disables the circuit breaker",
+                    defaultValue = "5",
+                    scope=PropertyScope.Instance)
+    private int circuit_breaker_threshold;
+
+    @PluginProperty(title = "Circuit Breaker Open Time",
+                    description = "Seconds messages are not sent once the circuit breaker opened, before a single message probes whether Slack is back",
+                    defaultValue = "30",
+                    scope=PropertyScope.Instance)
+    private int circuit_breaker_open_time;
+
+    @PluginProperty(title = "Spool Directory",
+                    description = "Directory where messages are kept until Slack accepted them, so they are delivered after an outage or restart (optional)",
+                    scope=PropertyScope.Instance)
+    private String spool_dir;
+
+    @PluginProperty(title = "Spool Segment Size",
+                    description = "Size in KiB of each spool file",
+                    defaultValue = "4096",
+                    scope=PropertyScope.Instance)
+    private int spool_segment_size;
+
+    @PluginProperty(title = "Spool Max Messages",
+                    description = "Maximum number of undelivered messages kept in the spool, the oldest is dropped to make room",
+                    defaultValue = "10000",
+                    scope=PropertyScope.Instance)
+    private int spool_max_messages;
+
+    @PluginProperty(title = "Connection Keep-Alive",
+                    description = "Reuse connections to the webhook host through the JDK's keep-alive cache instead of opening a new connection for every message",
+                    defaultValue = "true",
+                    scope=PropertyScope.Instance)
+    private boolean http_keep_alive;
+
+    @PluginProperty(title = "Metrics File",
+                    description = "File the plugin metrics are periodically written to in the Prometheus text format, for the node_exporter textfile collector (optional)",
+                    scope=PropertyScope.Instance)
+    private String metrics_file;
+
+    @PluginProperty(title = "Metrics File Interval",
+                    description = "Seconds between two writes of the metrics file",
+                    defaultValue = "60",
+                    scope=PropertyScope.Instance)
+    private int metrics_file_interval;
+
     /**
      * Sends a message to a Slack room when a job notification event is raised by Rundeck.
      *
@@ -88,135 +280,592 @@ public class SlackNotificationPlugin implements NotificationPlugin {
      * @param executionData job execution data
      * @param config plugin configuration
      * @throws SlackNotificationPluginException when any error occurs sending the Slack message
-     * @return true, if the Slack API response indicates a message was successfully delivered to a chat room
+     * @return true, if the Slack API response indicates a message was successfully delivered to a chat room,
+     *         if the message was scheduled for another delivery attempt after a temporary failure,
+     *         if the notification was added to a batch or digest, suppressed as a repeat or dropped by a routing rule,
+     *         or, with asynchronous delivery, if the message was queued for delivery
      */
     public boolean postNotification(String trigger, Map executionData, Map config) {
 
-        String ACTUAL_SLACK_TEMPLATE;
+        SlackTrigger slackTrigger = SlackTrigger.forName(trigger);
+        if (slackTrigger == null) {
+            throw new IllegalArgumentException("Unknown trigger type: [" + trigger + "].");
+        }
 
-        ClassTemplateLoader builtInTemplate = new ClassTemplateLoader(SlackNotificationPlugin.class, "/templates");
-        TemplateLoader[] loaders = new TemplateLoader[]{builtInTemplate};
-        MultiTemplateLoader mtl = new MultiTemplateLoader(loaders);
-        FREEMARKER_CFG.setTemplateLoader(mtl);
-        ACTUAL_SLACK_TEMPLATE = SLACK_MESSAGE_TEMPLATE;
+        if(this.webhook_base_url.isEmpty() || this.webhook_token.isEmpty()){
+            throw new IllegalArgumentException("URL or Token not set");
+        }
 
-        TRIGGER_NOTIFICATION_DATA.put(TRIGGER_START,   new SlackNotificationData(ACTUAL_SLACK_TEMPLATE, SLACK_MESSAGE_COLOR_YELLOW));
-        TRIGGER_NOTIFICATION_DATA.put(TRIGGER_SUCCESS, new SlackNotificationData(ACTUAL_SLACK_TEMPLATE, SLACK_MESSAGE_COLOR_GREEN));
-        TRIGGER_NOTIFICATION_DATA.put(TRIGGER_FAILURE, new SlackNotificationData(ACTUAL_SLACK_TEMPLATE, SLACK_MESSAGE_COLOR_RED));
-        TRIGGER_NOTIFICATION_DATA.put(TRIGGER_AVERAGE, new SlackNotificationData(ACTUAL_SLACK_TEMPLATE, SLACK_MESSAGE_COLOR_YELLOW));
-        TRIGGER_NOTIFICATION_DATA.put(TRIGGER_ONRETRY, new SlackNotificationData(ACTUAL_SLACK_TEMPLATE, SLACK_MESSAGE_COLOR_YELLOW));
+        exportMetrics();
+
+        String webhookToken = this.webhook_token;
+        String routedChannel = this.slack_channel;
+        if (this.routing_rules != null && !this.routing_rules.trim().isEmpty()) {
+            SlackRouter.Route route = SlackRouter.forRules(this.routing_rules).route(slackTrigger, executionData);
+            if (route != null) {
+                if (route.isDrop()) {
+                    return true;
+                }
+                webhookToken = route.webhookToken() != null ? route.webhookToken() : webhookToken;
+                routedChannel = route.channel() != null ? route.channel() : routedChannel;
+            }
+        }
 
+        final String webhook_url = this.webhook_base_url + "/" + webhookToken;
+        final String primaryChannel = routedChannel;
+        final SlackPayload.Format format = SlackPayload.Format.forName(this.payload_format);
+        final List<SlackFanOut.Destination> destinations = SlackFanOut.parse(this.webhook_base_url, this.additional_destinations);
+        // with several destinations, the message is rendered once without a channel and the channel added per destination
+        final String channel = destinations.isEmpty() ? primaryChannel : null;
+        final String destinationKey = webhook_url + " " + primaryChannel + (destinations.isEmpty() ? "" : " " + this.additional_destinations.trim());
+
+        if (this.dedupe_window > 0 && (slackTrigger == SlackTrigger.FAILURE || slackTrigger == SlackTrigger.ONRETRY)) {
+            final Map repeatConfig = config;
+            // follow-ups are reported on the single dedupe thread and sent through the delivery queue
+            boolean send = SlackDedupeCache.shouldSend(destinationKey, slackTrigger, copyOf(executionData),
+                    TimeUnit.MINUTES.toMillis(this.dedupe_window), this.dedupe_max_entries, new SlackDedupeCache.RepeatReporter() {
+                        public void reportRepeats(SlackTrigger trigger, Map lastExecutionData, int repeatCount) {
+                            HashMap<String, Object> model = notificationModel(trigger, lastExecutionData, repeatConfig);
+                            model.put("repeatCount", repeatCount);
+                            if (channel != null) {
+                                model.put("channel", channel);
+                            }
+                            send(selectWebhook(webhook_url, shardKey(lastExecutionData)), primaryChannel,
+                                    renderPayload(SLACK_MESSAGE_TEMPLATE, model, format), destinations, trigger, true);
+                        }
+                    });
+            if (!send) {
+                return true;
+            }
+        }
 
-        try {
-            FREEMARKER_CFG.setSetting(Configuration.CACHE_STORAGE_KEY, "strong:20, soft:250");
-        }catch(Exception e){
-            System.err.printf("Got and exception from Freemarker: %s", e.getMessage());
+        if (this.digest_window > 0) {
+            // like batches, digests are sent through the delivery queue to keep the shared flush thread free
+            String digestKey = destinationKey + " " + format;
+            SlackDigest.record(digestKey, TimeUnit.MINUTES.toMillis(this.digest_window), this.digest_flush_on_failure,
+                    slackTrigger, executionData, new SlackDigest.Flusher() {
+                        public void flush(Map<String, Object> model, Set<SlackTrigger> triggers) {
+                            send(selectWebhook(webhook_url, destinationKey), primaryChannel,
+                                    generateDigestMessage(model, channel, format), destinations, mostUrgent(triggers), true);
+                        }
+                    });
+            return true;
         }
 
-        if (!TRIGGER_NOTIFICATION_DATA.containsKey(trigger)) {
-            throw new IllegalArgumentException("Unknown trigger type: [" + trigger + "].");
+        if (this.batch_window > 0) {
+            String batchKey = destinationKey + " " + format;
+            // the flusher sends through the delivery queue, so that the shared flush thread never waits for Slack
+            SlackBatcher.add(batchKey, TimeUnit.SECONDS.toMillis(this.batch_window), this.batch_max_size,
+                    notificationModel(slackTrigger, copyOf(executionData), config), new SlackBatcher.Flusher() {
+                        public void flush(List<Map<String, Object>> notifications) {
+                            List<SlackTrigger> triggers = new ArrayList<SlackTrigger>(notifications.size());
+                            for (Map<String, Object> notification : notifications) {
+                                triggers.add(SlackTrigger.forName(String.valueOf(notification.get("trigger"))));
+                            }
+                            send(selectWebhook(webhook_url, destinationKey), primaryChannel,
+                                    generateBatchMessage(notifications, channel, format), destinations, mostUrgent(triggers), true);
+                        }
+                    });
+            return true;
         }
 
-        if(this.webhook_base_url.isEmpty() || this.webhook_token.isEmpty()){
-            throw new IllegalArgumentException("URL or Token not set");
+        SlackPayload payload = generateMessage(slackTrigger, executionData, config, channel, format);
+        return send(selectWebhook(webhook_url, shardKey(executionData)), primaryChannel, payload, destinations, slackTrigger,
+                this.async_dispatch);
+    }
+
+    /**
+     * Copies the execution data for a message sent later, so that it stays unchanged when Rundeck reuses the map
+     * after the notification. Nested maps, like the job, and lists are copied as well; their other values, like
+     * strings and numbers, are shared.
+     *
+     * @return copy of the execution data
+     */
+    static Map<String, Object> copyOf(Map<?, ?> executionData) {
+        Map<String, Object> copy = new HashMap<String, Object>(executionData.size() * 2);
+        for (Map.Entry<?, ?> entry : executionData.entrySet()) {
+            copy.put(String.valueOf(entry.getKey()), copyValue(entry.getValue()));
         }
+        return copy;
+    }
 
-        String webhook_url=this.webhook_base_url+"/"+this.webhook_token;
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            return copyOf((Map<?, ?>) value);
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<Object>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                copy.add(copyValue(element));
+            }
+            return copy;
+        }
+        return value;
+    }
 
-        String message = generateMessage(trigger, executionData, config, this.slack_channel);
-        String slackResponse = invokeSlackAPIMethod(webhook_url, message);
-        String ms = "payload=" + this.urlEncode(message);
+    /**
+     * @return most urgent of the triggers for a message about several notifications, deciding its delivery lane
+     */
+    private static SlackTrigger mostUrgent(Collection<SlackTrigger> triggers) {
+        for (SlackTrigger trigger : SlackDispatcher.LANES) {
+            if (triggers.contains(trigger)) {
+                return trigger;
+            }
+        }
+        return SlackTrigger.SUCCESS;
+    }
 
-        if ("ok".equals(slackResponse)) {
-            return true;
-        } else {
+    /**
+     * Picks the webhook of the token pool a message is sent to. Messages routed to another token than the
+     * configured one are not spread.
+     */
+    private String selectWebhook(String webhook_url, String shardKey) {
+        if (this.webhook_token_pool == null || this.webhook_token_pool.trim().isEmpty() || !webhook_url.equals(webhookUrl())) {
+            return webhook_url;
+        }
+        SlackTokenPool tokenPool = SlackTokenPool.forTokens(this.webhook_base_url, this.webhook_token, this.webhook_token_pool);
+        return tokenPool.select(SlackTokenPool.Selection.forName(this.token_selection), shardKey, new SlackTokenPool.Load() {
+            public long of(String webhookUrl) {
+                return webhookLoad(webhookUrl);
+            }
+        });
+    }
+
+    /**
+     * Load of a webhook for least-loaded token selection: webhooks with an open circuit come last, then the rate
+     * limit wait decides, and requests in flight break ties.
+     */
+    private long webhookLoad(String webhookUrl) {
+        if (SlackCircuitBreaker.stateOf(webhookUrl) != SlackCircuitBreaker.State.CLOSED) {
+            return Long.MAX_VALUE;
+        }
+        long waitMillis = 0;
+        if (this.rate_limit > 0) {
+            waitMillis = TimeUnit.NANOSECONDS.toMillis(SlackRateLimiter.forWebhook(webhookUrl, this.rate_limit, this.rate_limit_burst).waitNanos());
+        }
+        return (waitMillis << 20) + SlackMetrics.forWebhook(webhookUrl).getInFlightRequests();
+    }
+
+    /**
+     * @return key keeping the messages of a job on the same webhook of the token pool
+     */
+    private static String shardKey(Map executionData) {
+        Object job = executionData.get("job");
+        if (job instanceof Map && ((Map) job).get("id") != null) {
+            return ((Map) job).get("id").toString();
+        }
+        return String.valueOf(executionData.get("id"));
+    }
+
+    /**
+     * Sends a rendered message to the webhook, and to the additional destinations if there are any. These are sent
+     * to concurrently, waiting for the destination quorum.
+     */
+    private boolean send(String webhook_url, String channel, SlackPayload payload, List<SlackFanOut.Destination> destinations,
+                         SlackTrigger trigger, boolean queued) {
+        if (destinations.isEmpty()) {
+            return dispatch(webhook_url, payload, trigger, queued);
+        }
+        List<Callable<Boolean>> sends = new ArrayList<Callable<Boolean>>(destinations.size() + 1);
+        sends.add(sendTo(webhook_url, channel, payload, trigger, queued));
+        for (SlackFanOut.Destination destination : destinations) {
+            sends.add(sendTo(destination.webhookUrl(), destination.channel(), payload, trigger, queued));
+        }
+        return SlackFanOut.sendAll(sends, this.destination_quorum);
+    }
+
+    private Callable<Boolean> sendTo(final String webhook_url, String channel, SlackPayload payload, final SlackTrigger trigger,
+                                     final boolean queued) {
+        final SlackPayload channelPayload = channel != null && !channel.isEmpty() ? payload.withChannel(channel) : payload;
+        return new Callable<Boolean>() {
+            public Boolean call() {
+                return dispatch(webhook_url, channelPayload, trigger, queued);
+            }
+        };
+    }
+
+    /**
+     * Sends a rendered message, spooling it first if a spool is configured, either right away or, if queued, through
+     * the asynchronous delivery queue, in the lane of the trigger.
+     */
+    private boolean dispatch(final String webhook_url, final SlackPayload payload, SlackTrigger trigger, boolean queued) {
+        final SlackMetrics metrics = SlackMetrics.forWebhook(webhook_url);
+        if (payload.renderNanos() > 0) {
+            metrics.recordRenderTime(payload.renderNanos());
+        }
+        SlackSpool spool = openSpool();
+        final SlackSpool.Entry spoolEntry = spool != null ? spool.append(webhook_url, payload) : null;
+
+        if (queued) {
+            SlackDispatcher dispatcher = SlackDispatcher.forSettings(this.async_queue_capacity, this.async_workers,
+                    SlackDispatcher.OverflowPolicy.forName(this.async_overflow_policy),
+                    TimeUnit.SECONDS.toMillis(this.async_starvation_limit));
+            boolean accepted;
+            metrics.queued();
+            try {
+                accepted = dispatcher.submit(trigger, new SlackDispatcher.Delivery() {
+                    public void run() {
+                        metrics.dequeued();
+                        deliverMessage(webhook_url, payload, spoolEntry);
+                    }
+
+                    public void discarded() {
+                        metrics.dequeued();
+                        metrics.recordDropped();
+                        acknowledge(spoolEntry);
+                    }
+                });
+            } catch (InterruptedException interruptedEx) {
+                // not discarded by the overflow policy: a spooled message is kept for redelivery
+                metrics.dequeued();
+                Thread.currentThread().interrupt();
+                if (spoolEntry != null) {
+                    spoolEntry.requeue();
+                }
+                throw new SlackNotificationPluginException("Interrupted while waiting for room in the Slack delivery queue.", interruptedEx);
+            }
+            if (!accepted) {
+                metrics.dequeued();
+                metrics.recordDropped();
+                acknowledge(spoolEntry);
+            }
+            return accepted;
+        }
+        return deliverMessage(webhook_url, payload, spoolEntry);
+    }
+
+    /**
+     * Opens the spool if one is configured, scheduling the redelivery of messages recovered from a previous run.
+     *
+     * @return spool, or null if spooling is disabled
+     */
+    private SlackSpool openSpool() {
+        if (this.spool_dir == null || this.spool_dir.trim().isEmpty()) {
+            return null;
+        }
+        SlackSpool spool = SlackSpool.forDirectory(new File(this.spool_dir.trim()), this.spool_segment_size * 1024, this.spool_max_messages);
+        for (final SlackSpool.Entry recovered : spool.takeRecovered()) {
+            SlackRetryPolicy.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        deliverMessage(recovered.webhookUrl(), recovered.payload(), recovered);
+                    } catch (SlackNotificationPluginException recoveryEx) {
+                        System.err.printf("Redelivery of spooled Slack notification failed: %s%n", recoveryEx.getMessage());
+                    }
+                }
+            }, 0);
+        }
+        return spool;
+    }
+
+    /**
+     * Starts the periodic metrics export if a metrics file is configured.
+     */
+    private void exportMetrics() {
+        if (this.metrics_file != null && !this.metrics_file.trim().isEmpty()) {
+            SlackPrometheusExporter.forFile(new File(this.metrics_file.trim()), this.metrics_file_interval);
+        }
+    }
+
+    private boolean deliverMessage(String webhook_url, SlackPayload payload, SlackSpool.Entry spoolEntry) {
+        SlackRetryPolicy retryPolicy = new SlackRetryPolicy(this.retry_max_attempts, TimeUnit.SECONDS.toMillis(this.retry_deadline));
+        return attemptDelivery(webhook_url, payload, spoolEntry, retryPolicy, 1, System.nanoTime());
+    }
+
+    /**
+     * Sends the message once. Temporary failures are handed to the retry scheduler as long as the retry policy allows
+     * another attempt, any other failure is thrown. Spooled messages are acknowledged once Slack accepted or rejected
+     * them, and handed back to the spool for redelivery with a later notification when retries are exhausted. While the webhook's circuit breaker is open, the message
+     * is not sent and retried once the circuit lets a probe through.
+     */
+    private boolean attemptDelivery(final String webhook_url, final SlackPayload payload, final SlackSpool.Entry spoolEntry,
+                                    final SlackRetryPolicy retryPolicy, final int attempt, final long firstAttemptNanos) {
+        SlackNotificationPluginException failure;
+        boolean retryable;
+        long retryAfterMillis = -1;
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.notification_timeout);
+        SlackMetrics metrics = SlackMetrics.forWebhook(webhook_url);
+        SlackCircuitBreaker circuitBreaker = circuitBreaker(webhook_url);
+        boolean sending = false;
+        try {
+            if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+                metrics.recordCircuitOpen();
+                throw new SlackNotificationPluginException("Slack webhook circuit breaker is open, message not sent.",
+                        SlackNotificationPluginException.FailureCategory.CIRCUIT_OPEN);
+            }
+            awaitRateLimit(webhook_url, deadlineNanos);
+            sending = true;
+            SlackHttpResponse response;
+            long requestStart = System.nanoTime();
+            metrics.requestStarted();
+            try {
+                response = invokeSlackAPIMethod(webhook_url, payload, deadlineNanos);
+            } finally {
+                metrics.requestFinished(System.nanoTime() - requestStart);
+            }
+            metrics.recordResponse(response.getStatusCode());
+            if (circuitBreaker != null) {
+                if (response.getStatusCode() >= 500) {
+                    circuitBreaker.recordFailure();
+                } else {
+                    circuitBreaker.recordSuccess();
+                }
+            }
+            if ("ok".equals(response.getBody())) {
+                metrics.recordSent();
+                acknowledge(spoolEntry);
+                return true;
+            }
+            metrics.recordFailedAttempt(response.getBody());
             // Unfortunately there seems to be no way to obtain a reference to the plugin logger within notification plugins,
             // but throwing an exception will result in its message being logged.
-            throw new SlackNotificationPluginException("Unknown status returned from Slack API: [" + slackResponse + "]." + "\n" + ms);
+            failure = new SlackNotificationPluginException("Unknown status returned from Slack API: [" + response.getBody() + "]." + "\n" + payload.toDiagnosticString(),
+                    SlackNotificationPluginException.FailureCategory.SLACK_RESPONSE);
+            retryable = SlackRetryPolicy.isRetryableStatus(response.getStatusCode());
+            retryAfterMillis = SlackRetryPolicy.parseRetryAfter(response.getHeader("Retry-After"));
+        } catch (SlackNotificationPluginException sendEx) {
+            failure = sendEx;
+            SlackNotificationPluginException.FailureCategory category = sendEx.getFailureCategory();
+            if (category != SlackNotificationPluginException.FailureCategory.CIRCUIT_OPEN) {
+                metrics.recordFailedAttempt(category.name().toLowerCase());
+            }
+            retryable = category == SlackNotificationPluginException.FailureCategory.TIMEOUT
+                    || category == SlackNotificationPluginException.FailureCategory.CONNECTION
+                    || category == SlackNotificationPluginException.FailureCategory.CIRCUIT_OPEN
+                    || category == SlackNotificationPluginException.FailureCategory.RATE_LIMITED;
+            if (category == SlackNotificationPluginException.FailureCategory.RATE_LIMITED) {
+                // rounded up, a retry that comes too early finds the rate limit exceeded again
+                long waitNanos = SlackRateLimiter.forWebhook(webhook_url, this.rate_limit, this.rate_limit_burst).waitNanos();
+                retryAfterMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+            }
+            if (category == SlackNotificationPluginException.FailureCategory.CIRCUIT_OPEN) {
+                retryAfterMillis = circuitBreaker.remainingOpenMillis();
+            } else if (circuitBreaker != null) {
+                if (sending && category != SlackNotificationPluginException.FailureCategory.OTHER) {
+                    circuitBreaker.recordFailure();
+                } else {
+                    circuitBreaker.recordNotSent();
+                }
+            }
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstAttemptNanos);
+        long delayMillis = retryable ? retryPolicy.nextDelayMillis(attempt, elapsedMillis, retryAfterMillis) : -1;
+        if (delayMillis < 0) {
+            if (!retryable) {
+                acknowledge(spoolEntry);
+            } else if (spoolEntry != null) {
+                spoolEntry.requeue();
+            }
+            metrics.recordFailed();
+            throw failure;
+        }
+        System.err.printf("Slack notification attempt %d failed, retrying in %d ms: %s%n", attempt, delayMillis, failure.getMessage());
+        metrics.recordRetry();
+        SlackRetryPolicy.schedule(new Runnable() {
+            public void run() {
+                try {
+                    attemptDelivery(webhook_url, payload, spoolEntry, retryPolicy, attempt + 1, firstAttemptNanos);
+                } catch (SlackNotificationPluginException retryEx) {
+                    System.err.printf("Slack notification delivery failed after %d attempts: %s%n", attempt + 1, retryEx.getMessage());
+                }
+            }
+        }, delayMillis);
+        return true;
+    }
+
+    private String webhookUrl() {
+        return this.webhook_base_url + "/" + this.webhook_token;
+    }
+
+    /**
+     * @return the webhook's shared circuit breaker, or null if the circuit breaker is disabled
+     */
+    private SlackCircuitBreaker circuitBreaker(String webhook_url) {
+        if (this.circuit_breaker_threshold <= 0) {
+            return null;
         }
+        return SlackCircuitBreaker.forWebhook(webhook_url, this.circuit_breaker_threshold,
+                TimeUnit.SECONDS.toMillis(this.circuit_breaker_open_time));
     }
 
-    private String generateMessage(String trigger, Map executionData, Map config, String channel) {
-        String templateName = TRIGGER_NOTIFICATION_DATA.get(trigger).template;
-        String color = TRIGGER_NOTIFICATION_DATA.get(trigger).color;
+    private void acknowledge(SlackSpool.Entry spoolEntry) {
+        if (spoolEntry != null) {
+            spoolEntry.acknowledge();
+        }
+    }
 
-        HashMap<String, Object> model = new HashMap<String, Object>();
-        model.put("trigger", trigger);
-        model.put("color", color);
-        model.put("executionData", executionData);
-        model.put("config", config);
+    /**
+     * Waits for the webhook's rate limit, at most for Rate Limit Max Wait and until the notification deadline, so that
+     * a backlog never holds the calling thread, which may be a Rundeck execution thread, for long.
+     */
+    private void awaitRateLimit(String webhook_url, long deadlineNanos) {
+        if (this.rate_limit <= 0) {
+            return;
+        }
+        try {
+            SlackRateLimiter rateLimiter = SlackRateLimiter.forWebhook(webhook_url, this.rate_limit, this.rate_limit_burst);
+            long maxWaitNanos = Math.min(TimeUnit.SECONDS.toNanos(this.rate_limit_max_wait), deadlineNanos - System.nanoTime());
+            if (!rateLimiter.tryAcquire(maxWaitNanos)) {
+                throw new SlackNotificationPluginException("Slack rate limit of the webhook exceeded, the message would have waited "
+                        + TimeUnit.NANOSECONDS.toMillis(rateLimiter.waitNanos()) + " ms, longer than the "
+                        + TimeUnit.NANOSECONDS.toMillis(Math.max(0, maxWaitNanos)) + " ms allowed.",
+                        SlackNotificationPluginException.FailureCategory.RATE_LIMITED);
+            }
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new SlackNotificationPluginException("Interrupted while waiting for the Slack rate limit: [" + interruptedEx.getMessage() + "].", interruptedEx);
+        }
+    }
+
+    /**
+     * Renders the Slack message for a notification. Package visible for the benchmarks.
+     */
+    SlackPayload generateMessage(SlackTrigger trigger, Map executionData, Map config, String channel, SlackPayload.Format format) {
+        HashMap<String, Object> model = notificationModel(trigger, executionData, config);
         if (channel != null) {
             model.put("channel", channel);
         }
+        return renderPayload(SLACK_MESSAGE_TEMPLATE, model, format);
+    }
 
-        StringWriter sw = new StringWriter();
-        try {
-            Template template = FREEMARKER_CFG.getTemplate(templateName);
-            template.process(model,sw);
+    /**
+     * Renders one Slack message with an attachment for each of the batched notifications.
+     */
+    private SlackPayload generateBatchMessage(List<Map<String, Object>> notifications, String channel, SlackPayload.Format format) {
+        if (notifications.size() == 1) {
+            return renderPayload(SLACK_MESSAGE_TEMPLATE, withChannel(notifications.get(0), channel), format);
+        }
+        HashMap<String, Object> model = new HashMap<String, Object>();
+        model.put("notifications", notifications);
+        if (channel != null) {
+            model.put("channel", channel);
+        }
+        return renderPayload(SLACK_BATCH_TEMPLATE, model, format);
+    }
 
-        } catch (IOException ioEx) {
-            throw new SlackNotificationPluginException("Error loading Slack notification message template: [" + ioEx.getMessage() + "].", ioEx);
-        } catch (TemplateException templateEx) {
-            throw new SlackNotificationPluginException("Error merging Slack notification message template: [" + templateEx.getMessage() + "].", templateEx);
+    private SlackPayload generateDigestMessage(Map<String, Object> model, String channel, SlackPayload.Format format) {
+        if (channel != null) {
+            model.put("channel", channel);
         }
+        return renderPayload(SLACK_DIGEST_TEMPLATE, model, format);
+    }
 
-        return sw.toString();
+    private HashMap<String, Object> notificationModel(SlackTrigger trigger, Map executionData, Map config) {
+        HashMap<String, Object> model = new HashMap<String, Object>();
+        model.put("trigger", trigger.triggerName());
+        model.put("color", trigger.color());
+        model.put("executionData", executionData);
+        model.put("config", config);
+        return model;
+    }
 
+    private Map<String, Object> withChannel(Map<String, Object> model, String channel) {
+        if (channel == null) {
+            return model;
+        }
+        Map<String, Object> withChannel = new HashMap<String, Object>(model);
+        withChannel.put("channel", channel);
+        return withChannel;
     }
 
-    private String urlEncode(String s) {
+    /**
+     * Renders a template straight into an encoded request body, without building the message as a String first.
+     */
+    private SlackPayload renderPayload(String templateName, Map<String, Object> model, SlackPayload.Format format) {
+        long renderStart = System.nanoTime();
+        SlackPayload.PayloadWriter writer = SlackPayload.writer(format);
         try {
-            return URLEncoder.encode(s, "UTF-8");
-        } catch (UnsupportedEncodingException unsupportedEncodingException) {
-            throw new SlackNotificationPluginException("URL encoding error: [" + unsupportedEncodingException.getMessage() + "].", unsupportedEncodingException);
+            Template template = TemplateEngine.FREEMARKER_CFG.getTemplate(templateName);
+            template.process(model, writer);
+            SlackPayload payload = writer.toPayload();
+            payload.renderNanos(System.nanoTime() - renderStart);
+            return payload;
+
+        } catch (IOException ioEx) {
+            throw new SlackNotificationPluginException("Error loading Slack notification message template: [" + ioEx.getMessage() + "].", ioEx);
+        } catch (TemplateException templateEx) {
+            throw new SlackNotificationPluginException("Error merging Slack notification message template: [" + templateEx.getMessage() + "].", templateEx);
+        } finally {
+            writer.close();
         }
     }
 
-    private String invokeSlackAPIMethod(String webhook_url, String message) {
+    /**
+     * Posts the message. A response read to its end and closed without disconnecting hands the connection back to
+     * the JDK's keep-alive cache, which reuses it for the next message to the same host.
+     */
+    private SlackHttpResponse invokeSlackAPIMethod(String webhook_url, SlackPayload payload, long deadlineNanos) {
         URL requestUrl = toURL(webhook_url);
 
         HttpURLConnection connection = null;
         InputStream responseStream = null;
-        String body = "payload=" + this.urlEncode(message);
+        boolean keepAlive = false;
         try {
-            connection = openConnection(requestUrl);
-            putRequestStream(connection, body);
+            connection = openConnection(requestUrl, deadlineNanos);
+            putRequestStream(connection, payload);
             responseStream = getResponseStream(connection);
-            return getSlackResponse(responseStream);
+            String body = getSlackResponse(responseStream);
+            SlackHttpResponse response = new SlackHttpResponse(getResponseCode(connection), getResponseHeaders(connection), body);
+            keepAlive = this.http_keep_alive;
+            return response;
 
         } finally {
             closeQuietly(responseStream);
-            if (connection != null) {
+            if (connection != null && !keepAlive) {
                 connection.disconnect();
             }
         }
     }
 
+    /**
+     * Shortens a timeout to the time left until the deadline.
+     *
+     * @throws SocketTimeoutException if the deadline has already passed
+     */
+    private static int remainingMillis(int timeoutMillis, long deadlineNanos) throws SocketTimeoutException {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Notification deadline passed");
+        }
+        return (int) Math.min(timeoutMillis, remaining);
+    }
+
     private URL toURL(String url) {
         try {
             return new URL(url);
         } catch (MalformedURLException malformedURLEx) {
-            throw new SlackNotificationPluginException("Slack API URL is malformed: [" + malformedURLEx.getMessage() + "].", malformedURLEx);
+            // a configuration error, not a connection failure: it is neither retried nor counted by the circuit breaker
+            throw new SlackNotificationPluginException("Slack API URL is malformed: [" + malformedURLEx.getMessage() + "].", malformedURLEx,
+                    SlackNotificationPluginException.FailureCategory.OTHER);
         }
     }
 
-    private HttpURLConnection openConnection(URL requestUrl) {
+    private HttpURLConnection openConnection(URL requestUrl, long deadlineNanos) {
         try {
-            return (HttpURLConnection) requestUrl.openConnection();
+            HttpURLConnection connection = (HttpURLConnection) requestUrl.openConnection();
+            connection.setConnectTimeout(remainingMillis((int) TimeUnit.SECONDS.toMillis(this.connect_timeout), deadlineNanos));
+            connection.setReadTimeout(remainingMillis((int) TimeUnit.SECONDS.toMillis(this.read_timeout), deadlineNanos));
+            return connection;
         } catch (IOException ioEx) {
             throw new SlackNotificationPluginException("Error opening connection to Slack URL: [" + ioEx.getMessage() + "].", ioEx);
         }
     }
 
-    private void putRequestStream(HttpURLConnection connection, String message) {
+    private void putRequestStream(HttpURLConnection connection, SlackPayload payload) {
         try {
             connection.setRequestMethod("POST");
             connection.setRequestProperty("charset", "utf-8");
+            connection.setRequestProperty("Content-Type", payload.contentType());
+            if (!this.http_keep_alive) {
+                connection.setRequestProperty("Connection", "close");
+            }
 
             connection.setDoInput(true);
             connection.setDoOutput(true);
-            DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-            wr.writeBytes(message);
+            connection.setFixedLengthStreamingMode(payload.length());
+            OutputStream wr = connection.getOutputStream();
+            payload.writeTo(wr);
             wr.flush();
             wr.close();
         } catch (IOException ioEx) {
@@ -228,8 +877,13 @@ public class SlackNotificationPlugin implements NotificationPlugin {
         InputStream input = null;
         try {
             input = connection.getInputStream();
+        } catch (SocketTimeoutException timeoutEx) {
+            throw new SlackNotificationPluginException("Timed out waiting for Slack API response: [" + timeoutEx.getMessage() + "].", timeoutEx);
         } catch (IOException ioEx) {
             input = connection.getErrorStream();
+            if (input == null) {
+                throw new SlackNotificationPluginException("Error reading Slack API response: [" + ioEx.getMessage() + "].", ioEx);
+            }
         }
         return input;
     }
@@ -242,9 +896,19 @@ public class SlackNotificationPlugin implements NotificationPlugin {
         }
     }
 
+    private Map<String, String> getResponseHeaders(HttpURLConnection connection) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() != null && !header.getValue().isEmpty()) {
+                headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+            }
+        }
+        return headers;
+    }
+
     private String getSlackResponse(InputStream responseStream) {
         try {
-            return new Scanner(responseStream,"UTF-8").useDelimiter("\\A").next();
+            return SlackHttpResponse.readBody(responseStream);
         } catch (Exception ioEx) {
             throw new SlackNotificationPluginException("Error reading Slack API JSON response: [" + ioEx.getMessage() + "].", ioEx);
         }
@@ -260,12 +924,29 @@ public class SlackNotificationPlugin implements NotificationPlugin {
         }
     }
 
-    private static class SlackNotificationData {
-        private String template;
-        private String color;
-        public SlackNotificationData(String template, String color) {
-            this.color = color;
-            this.template = template;
+    /**
+     * Lazily initialized holder for the shared FreeMarker configuration.
+     *
+     * The configuration is built once per classloader, on first use, and is never modified afterwards,
+     * so concurrent notifications can share it and its template cache without re-parsing the template.
+     */
+    private static final class TemplateEngine {
+
+        private static final Configuration FREEMARKER_CFG = createConfiguration();
+
+        private static Configuration createConfiguration() {
+            Configuration cfg = new Configuration();
+
+            ClassTemplateLoader builtInTemplate = new ClassTemplateLoader(SlackNotificationPlugin.class, "/templates");
+            TemplateLoader[] loaders = new TemplateLoader[]{builtInTemplate};
+            cfg.setTemplateLoader(new MultiTemplateLoader(loaders));
+
+            try {
+                cfg.setSetting(Configuration.CACHE_STORAGE_KEY, "strong:20, soft:250");
+            } catch (Exception e) {
+                System.err.printf("Got and exception from Freemarker: %s", e.getMessage());
+            }
+            return cfg;
         }
     }
 
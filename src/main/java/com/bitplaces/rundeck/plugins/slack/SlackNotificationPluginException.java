@@ -17,28 +17,89 @@
 
 package com.bitplaces.rundeck.plugins.slack;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
 /**
  * @author Andrew Karpow
  */
 public class SlackNotificationPluginException extends RuntimeException {
 
+    /**
+     * Kind of failure that caused the exception.
+     */
+    public enum FailureCategory {
+        /** Slack did not answer within the configured connect, read or notification timeout */
+        TIMEOUT,
+        /** the connection to Slack could not be established or broke down */
+        CONNECTION,
+        /** Slack answered, but did not accept the message */
+        SLACK_RESPONSE,
+        /** the message was not sent because the webhook's circuit breaker is open */
+        CIRCUIT_OPEN,
+        /** the message was not sent because it would have waited too long for the webhook's rate limit */
+        RATE_LIMITED,
+        /** any other failure, like an invalid configuration or template */
+        OTHER
+    }
+
+    private final FailureCategory failureCategory;
+
     /**
      * Constructor.
      *
      * @param message error message
      */
     public SlackNotificationPluginException(String message) {
-        super(message);
+        this(message, FailureCategory.OTHER);
     }
 
     /**
      * Constructor.
      *
      * @param message error message
+     * @param failureCategory kind of failure
+     */
+    public SlackNotificationPluginException(String message, FailureCategory failureCategory) {
+        super(message);
+        this.failureCategory = failureCategory;
+    }
+
+    /**
+     * Constructor. The failure category is derived from the cause: socket timeouts are reported as
+     * {@link FailureCategory#TIMEOUT}, other I/O errors as {@link FailureCategory#CONNECTION}.
+     *
+     * @param message error message
      * @param cause exception cause
      */
     public SlackNotificationPluginException(String message, Throwable cause) {
         super(message, cause);
+        if (cause instanceof SocketTimeoutException) {
+            this.failureCategory = FailureCategory.TIMEOUT;
+        } else if (cause instanceof IOException) {
+            this.failureCategory = FailureCategory.CONNECTION;
+        } else {
+            this.failureCategory = FailureCategory.OTHER;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param message error message
+     * @param cause exception cause
+     * @param failureCategory kind of failure, whatever the cause
+     */
+    public SlackNotificationPluginException(String message, Throwable cause, FailureCategory failureCategory) {
+        super(message, cause);
+        this.failureCategory = failureCategory;
+    }
+
+    /**
+     * @return kind of failure that caused the exception
+     */
+    public FailureCategory getFailureCategory() {
+        return failureCategory;
     }
 
 }
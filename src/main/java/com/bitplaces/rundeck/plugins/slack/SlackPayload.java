@@ -0,0 +1,441 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Rendered Slack message, encoded exactly once into the request body sent to the webhook.
+ *
+ * Templates render straight into the request body through a {@link PayloadWriter}, which encodes into a buffer
+ * reused by the thread, so that the exactly sized copy kept by the payload is the only per-message allocation. The
+ * encoded bytes are reused for every send attempt; the message text and a printable copy for error messages are only
+ * built on request.
+ */
+final class SlackPayload {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] FORM_FIELD = "payload=".getBytes(US_ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(US_ASCII);
+
+    /**
+     * How the message is put into the request body.
+     */
+    enum Format {
+        /** URL-encoded {@code payload} form field */
+        FORM("form", "application/x-www-form-urlencoded"),
+        /** the JSON message itself, UTF-8 encoded */
+        JSON("json", "application/json; charset=utf-8");
+
+        private final String formatName;
+        private final String contentType;
+
+        Format(String formatName, String contentType) {
+            this.formatName = formatName;
+            this.contentType = contentType;
+        }
+
+        String contentType() {
+            return contentType;
+        }
+
+        static Format forName(String formatName) {
+            for (Format format : values()) {
+                if (format.formatName.equals(formatName)) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown payload format: [" + formatName + "].");
+        }
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    /** largest buffer kept for reuse, so that one huge message does not pin its buffer to the thread */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    /** writer and buffer reused by every payload rendered on a thread */
+    private static final ThreadLocal<PayloadWriter> WRITERS = new ThreadLocal<PayloadWriter>() {
+        @Override
+        protected PayloadWriter initialValue() {
+            return new PayloadWriter();
+        }
+    };
+
+    private final Format format;
+    private final byte[] body;
+    private final int length;
+    private String message;
+    private long renderNanos;
+
+    private SlackPayload(Format format, byte[] body, int length) {
+        this.format = format;
+        this.body = body;
+        this.length = length;
+    }
+
+    /**
+     * Encodes a rendered message into a request body.
+     *
+     * @param message rendered JSON message
+     * @param format request body format
+     * @return encoded payload
+     */
+    static SlackPayload encode(String message, Format format) {
+        PayloadWriter writer = writer(format);
+        try {
+            writer.write(message, 0, message.length());
+            SlackPayload payload = writer.toPayload();
+            payload.message = message;
+            return payload;
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Wraps a request body that was encoded before, like one read back from the spool.
+     *
+     * @param format request body format
+     * @param body encoded request body
+     * @return payload
+     */
+    static SlackPayload fromBody(Format format, byte[] body) {
+        return new SlackPayload(format, body, body.length);
+    }
+
+    /**
+     * Returns a writer that encodes the characters written to it straight into the request body, so that a template
+     * can be rendered without building the message as a String first. The writer and its buffer belong to the
+     * calling thread and are reused once the writer is closed.
+     *
+     * @param format request body format
+     * @return writer, to be turned into a payload with {@link PayloadWriter#toPayload()} and closed afterwards
+     */
+    static PayloadWriter writer(Format format) {
+        PayloadWriter writer = WRITERS.get();
+        if (writer.inUse) {
+            writer = new PayloadWriter();
+        }
+        writer.open(format);
+        return writer;
+    }
+
+    /**
+     * Returns a copy of this payload posting to the given channel, by adding a {@code "channel"} field to the
+     * message, which must not have one yet. JSON bodies are spliced without decoding the message.
+     *
+     * @param channel channel, like #channel-name
+     * @return payload for the channel
+     */
+    SlackPayload withChannel(String channel) {
+        String field = channelField(channel);
+        if (format == Format.JSON) {
+            int start = 0;
+            while (start < length && body[start] != '{') {
+                start++;
+            }
+            if (start == length) {
+                throw new IllegalArgumentException("Slack message is not a JSON object.");
+            }
+            int next = start + 1;
+            while (next < length && isWhitespace(body[next])) {
+                next++;
+            }
+            byte[] fieldBytes = (next < length && body[next] == '}' ? field : field + ",").getBytes(UTF_8);
+            byte[] spliced = new byte[length + fieldBytes.length];
+            System.arraycopy(body, 0, spliced, 0, start + 1);
+            System.arraycopy(fieldBytes, 0, spliced, start + 1, fieldBytes.length);
+            System.arraycopy(body, start + 1, spliced, start + 1 + fieldBytes.length, length - start - 1);
+            SlackPayload payload = new SlackPayload(format, spliced, spliced.length);
+            payload.renderNanos = renderNanos;
+            return payload;
+        }
+        String message = message();
+        int start = message.indexOf('{');
+        if (start < 0) {
+            throw new IllegalArgumentException("Slack message is not a JSON object.");
+        }
+        int next = start + 1;
+        while (next < message.length() && isWhitespace(message.charAt(next))) {
+            next++;
+        }
+        boolean empty = next < message.length() && message.charAt(next) == '}';
+        SlackPayload payload = encode(message.substring(0, start + 1) + field + (empty ? "" : ",") + message.substring(start + 1), format);
+        payload.renderNanos = renderNanos;
+        return payload;
+    }
+
+    private static String channelField(String channel) {
+        StringBuilder field = new StringBuilder(channel.length() + 16).append("\"channel\":\"");
+        for (int i = 0; i < channel.length(); i++) {
+            char c = channel.charAt(i);
+            if (c == '"' || c == '\\') {
+                field.append('\\').append(c);
+            } else if (c < 0x20) {
+                field.append(String.format("\\u%04x", (int) c));
+            } else {
+                field.append(c);
+            }
+        }
+        return field.append('"').toString();
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    Format format() {
+        return format;
+    }
+
+    String contentType() {
+        return format.contentType();
+    }
+
+    /**
+     * @return time spent rendering the message template, or 0 if the payload was not rendered by this plugin
+     *     instance, like one read back from the spool
+     */
+    long renderNanos() {
+        return renderNanos;
+    }
+
+    /**
+     * Records the time spent rendering the message template, to be attributed to every webhook the payload is sent to.
+     *
+     * @param nanos render time
+     */
+    void renderNanos(long nanos) {
+        this.renderNanos = nanos;
+    }
+
+    /**
+     * @return rendered JSON message, decoded from the request body on first use
+     */
+    String message() {
+        if (message == null) {
+            if (format == Format.JSON) {
+                message = new String(body, 0, length, UTF_8);
+            } else {
+                try {
+                    message = URLDecoder.decode(new String(body, FORM_FIELD.length, length - FORM_FIELD.length, US_ASCII), "UTF-8");
+                } catch (UnsupportedEncodingException unsupportedEncodingException) {
+                    throw new SlackNotificationPluginException("URL decoding error: [" + unsupportedEncodingException.getMessage() + "].", unsupportedEncodingException);
+                }
+            }
+        }
+        return message;
+    }
+
+    /**
+     * @return buffer holding the encoded request body in its first {@link #length()} bytes
+     */
+    byte[] body() {
+        return body;
+    }
+
+    /**
+     * @return length of the encoded request body
+     */
+    int length() {
+        return length;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(body, 0, length);
+    }
+
+    /**
+     * @return the request body as text, for error messages
+     */
+    String toDiagnosticString() {
+        return format == Format.JSON ? message() : new String(body, 0, length, US_ASCII);
+    }
+
+    /**
+     * Writer encoding characters into a request body as they are written: as UTF-8 for JSON bodies, URL-encoded
+     * like {@link java.net.URLEncoder} for form bodies. Unpaired surrogates are replaced by '?'.
+     */
+    static final class PayloadWriter extends Writer {
+
+        private Format format;
+        private ByteSink sink = new ByteSink(INITIAL_BUFFER_SIZE);
+        private char pendingHighSurrogate;
+        private boolean inUse;
+
+        private PayloadWriter() {
+        }
+
+        private void open(Format format) {
+            this.format = format;
+            this.inUse = true;
+            this.pendingHighSurrogate = 0;
+            sink.length = 0;
+            if (format == Format.FORM) {
+                sink.write(FORM_FIELD, 0, FORM_FIELD.length);
+            }
+        }
+
+        @Override
+        public void write(int c) {
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int count) {
+            for (int i = offset, end = offset + count; i < end; i++) {
+                encode(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String s, int offset, int count) {
+            for (int i = offset, end = offset + count; i < end; i++) {
+                encode(s.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Discards anything not yet turned into a payload and hands the writer back for reuse on this thread.
+         */
+        @Override
+        public void close() {
+            if (sink.buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                sink = new ByteSink(INITIAL_BUFFER_SIZE);
+            }
+            inUse = false;
+        }
+
+        /**
+         * @return the payload written so far, copied out of the reused buffer
+         */
+        SlackPayload toPayload() {
+            if (pendingHighSurrogate != 0) {
+                pendingHighSurrogate = 0;
+                encodeCodePoint('?');
+            }
+            byte[] body = Arrays.copyOf(sink.buffer, sink.length);
+            return new SlackPayload(format, body, body.length);
+        }
+
+        private void encode(char c) {
+            if (pendingHighSurrogate != 0) {
+                char high = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    encodeCodePoint(Character.toCodePoint(high, c));
+                    return;
+                }
+                // unpaired surrogate, replaced like the JDK encoders do
+                encodeCodePoint('?');
+            }
+            if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                encodeCodePoint('?');
+            } else {
+                encodeCodePoint(c);
+            }
+        }
+
+        private void encodeCodePoint(int codePoint) {
+            if (format == Format.FORM) {
+                if ((codePoint >= 'a' && codePoint <= 'z') || (codePoint >= 'A' && codePoint <= 'Z') || (codePoint >= '0' && codePoint <= '9')
+                        || codePoint == '.' || codePoint == '-' || codePoint == '*' || codePoint == '_') {
+                    sink.write(codePoint);
+                    return;
+                }
+                if (codePoint == ' ') {
+                    sink.write('+');
+                    return;
+                }
+            }
+            if (codePoint < 0x80) {
+                putByte(codePoint);
+            } else if (codePoint < 0x800) {
+                putByte(0xC0 | (codePoint >> 6));
+                putByte(0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                putByte(0xE0 | (codePoint >> 12));
+                putByte(0x80 | ((codePoint >> 6) & 0x3F));
+                putByte(0x80 | (codePoint & 0x3F));
+            } else {
+                putByte(0xF0 | (codePoint >> 18));
+                putByte(0x80 | ((codePoint >> 12) & 0x3F));
+                putByte(0x80 | ((codePoint >> 6) & 0x3F));
+                putByte(0x80 | (codePoint & 0x3F));
+            }
+        }
+
+        /**
+         * Writes one byte of UTF-8, percent-encoded for form bodies.
+         */
+        private void putByte(int b) {
+            if (format == Format.FORM) {
+                sink.write('%');
+                sink.write(HEX_DIGITS[(b >> 4) & 0x0F]);
+                sink.write(HEX_DIGITS[b & 0x0F]);
+            } else {
+                sink.write(b);
+            }
+        }
+    }
+
+    /**
+     * Growable byte array, avoiding the synchronization of ByteArrayOutputStream.
+     */
+    private static final class ByteSink {
+
+        private byte[] buffer;
+        private int length;
+
+        ByteSink(int capacity) {
+            this.buffer = new byte[Math.max(capacity, 16)];
+        }
+
+        void write(int b) {
+            if (length == buffer.length) {
+                grow(length + 1);
+            }
+            buffer[length++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int count) {
+            if (length + count > buffer.length) {
+                grow(length + count);
+            }
+            System.arraycopy(bytes, offset, buffer, length, count);
+            length += count;
+        }
+
+        private void grow(int minCapacity) {
+            byte[] grown = new byte[Math.max(buffer.length << 1, minCapacity)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes the plugin metrics in the Prometheus text format, for the node_exporter textfile collector.
+ *
+ * The file is written to a temporary file next to it and then renamed, so the collector never reads a partly
+ * written file. Exporters are shared JVM-wide and keyed by file; the export interval of the first notification
+ * using a file applies.
+ */
+final class SlackPrometheusExporter implements Runnable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, SlackPrometheusExporter> EXPORTERS = new ConcurrentHashMap<String, SlackPrometheusExporter>();
+
+    private static final ScheduledExecutorService EXPORT_SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "slack-metrics-export");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+
+    private SlackPrometheusExporter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts exporting to a file, unless an exporter for the file is already running.
+     *
+     * @param file file to write, which node_exporter expects to end in {@code .prom}
+     * @param intervalSeconds seconds between two exports
+     */
+    static void forFile(File file, int intervalSeconds) {
+        if (intervalSeconds < 1) {
+            throw new IllegalArgumentException("Metrics export interval must be positive: [" + intervalSeconds + "].");
+        }
+        String key = file.getAbsolutePath();
+        if (EXPORTERS.containsKey(key)) {
+            return;
+        }
+        SlackPrometheusExporter exporter = new SlackPrometheusExporter(file.getAbsoluteFile());
+        if (EXPORTERS.putIfAbsent(key, exporter) == null) {
+            EXPORT_SCHEDULER.scheduleWithFixedDelay(exporter, 0, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void run() {
+        try {
+            export();
+        } catch (IOException ioEx) {
+            // there is no plugin logger available outside of postNotification
+            System.err.printf("Could not write Slack notification metrics to %s: %s%n", file, ioEx.getMessage());
+        } catch (RuntimeException runtimeEx) {
+            // an exception would cancel the periodic export
+            System.err.printf("Could not write Slack notification metrics to %s: %s%n", file, runtimeEx);
+        }
+    }
+
+    private void export() throws IOException {
+        File temporary = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temporary), UTF_8);
+        try {
+            writeMetrics(out);
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException atomicMoveEx) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the metrics of every webhook, delivery queue and spool.
+     *
+     * @param out writer for the Prometheus text format
+     * @throws IOException if writing fails
+     */
+    static void writeMetrics(Writer out) throws IOException {
+        header(out, "slack_notifications_sent_total", "counter", "Messages accepted by Slack.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            sample(out, "slack_notifications_sent_total", webhookLabel(metrics), metrics.getSentCount());
+        }
+        header(out, "slack_notifications_failed_total", "counter", "Messages given up on after all delivery attempts.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            sample(out, "slack_notifications_failed_total", webhookLabel(metrics), metrics.getFailedCount());
+        }
+        header(out, "slack_notification_failed_attempts_total", "counter",
+                "Failed delivery attempts by Slack response, or by failure category if Slack did not answer.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            for (Map.Entry<String, Long> reason : metrics.getFailureReasons().entrySet()) {
+                sample(out, "slack_notification_failed_attempts_total",
+                        webhookLabel(metrics) + ",response=\"" + escape(reason.getKey()) + "\"", reason.getValue());
+            }
+        }
+        header(out, "slack_notification_retries_total", "counter", "Delivery attempts scheduled after a temporary failure.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            sample(out, "slack_notification_retries_total", webhookLabel(metrics), metrics.getRetryCount());
+        }
+        header(out, "slack_notifications_dropped_total", "counter", "Messages discarded because the delivery queue was full.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            sample(out, "slack_notifications_dropped_total", webhookLabel(metrics), metrics.getDroppedCount());
+        }
+        header(out, "slack_notification_circuit_open", "gauge", "1 while the webhook's circuit breaker keeps messages from being sent.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            boolean open = !SlackCircuitBreaker.State.CLOSED.name().equals(metrics.getCircuitState());
+            sample(out, "slack_notification_circuit_open", webhookLabel(metrics), open ? 1 : 0);
+        }
+        header(out, "slack_notification_webhook_queue_depth", "gauge", "Messages to the webhook waiting in the asynchronous delivery queues.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            sample(out, "slack_notification_webhook_queue_depth", webhookLabel(metrics), metrics.getQueueDepth());
+        }
+        header(out, "slack_notification_send_latency_seconds", "summary", "Time spent on HTTP requests to Slack.");
+        for (SlackMetrics metrics : SlackMetrics.all()) {
+            SlackHistogram httpTime = metrics.httpTime();
+            String label = webhookLabel(metrics);
+            sample(out, "slack_notification_send_latency_seconds", label + ",quantile=\"0.5\"", micros(httpTime.percentile(0.5)));
+            sample(out, "slack_notification_send_latency_seconds", label + ",quantile=\"0.99\"", micros(httpTime.percentile(0.99)));
+            sample(out, "slack_notification_send_latency_seconds_sum", label, micros(httpTime.sum()));
+            sample(out, "slack_notification_send_latency_seconds_count", label, httpTime.count());
+        }
+        header(out, "slack_notification_queue_depth", "gauge", "Deliveries waiting in an asynchronous delivery queue.");
+        for (Map.Entry<String, SlackDispatcher> dispatcher : SlackDispatcher.all().entrySet()) {
+            sample(out, "slack_notification_queue_depth", "queue=\"" + escape(dispatcher.getKey()) + "\"", dispatcher.getValue().getQueueDepth());
+        }
+        header(out, "slack_notification_queue_lane_depth", "gauge", "Deliveries waiting in an asynchronous delivery queue, by trigger.");
+        for (Map.Entry<String, SlackDispatcher> dispatcher : SlackDispatcher.all().entrySet()) {
+            for (Map.Entry<String, Integer> lane : dispatcher.getValue().getLaneDepths().entrySet()) {
+                sample(out, "slack_notification_queue_lane_depth", laneLabel(dispatcher.getKey(), lane.getKey()), lane.getValue());
+            }
+        }
+        header(out, "slack_notification_queue_dropped_total", "counter", "Deliveries discarded because the queue was full, by trigger.");
+        for (Map.Entry<String, SlackDispatcher> dispatcher : SlackDispatcher.all().entrySet()) {
+            for (Map.Entry<String, Long> lane : dispatcher.getValue().getLaneDroppedCounts().entrySet()) {
+                sample(out, "slack_notification_queue_dropped_total", laneLabel(dispatcher.getKey(), lane.getKey()), lane.getValue());
+            }
+        }
+        header(out, "slack_notification_queue_wait_seconds", "summary", "Time deliveries waited in an asynchronous delivery queue, by trigger.");
+        for (Map.Entry<String, SlackDispatcher> dispatcher : SlackDispatcher.all().entrySet()) {
+            for (SlackTrigger trigger : SlackDispatcher.LANES) {
+                SlackHistogram wait = dispatcher.getValue().laneWait(trigger);
+                String label = laneLabel(dispatcher.getKey(), trigger.triggerName());
+                sample(out, "slack_notification_queue_wait_seconds", label + ",quantile=\"0.5\"", micros(wait.percentile(0.5)));
+                sample(out, "slack_notification_queue_wait_seconds", label + ",quantile=\"0.99\"", micros(wait.percentile(0.99)));
+                sample(out, "slack_notification_queue_wait_seconds_sum", label, micros(wait.sum()));
+                sample(out, "slack_notification_queue_wait_seconds_count", label, wait.count());
+            }
+        }
+        header(out, "slack_notification_spool_backlog", "gauge", "Spooled messages not yet accepted by Slack.");
+        for (Map.Entry<String, Integer> backlog : SlackSpool.backlogs().entrySet()) {
+            sample(out, "slack_notification_spool_backlog", "directory=\"" + escape(backlog.getKey()) + "\"", backlog.getValue());
+        }
+    }
+
+    private static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer out, String name, String labels, long value) throws IOException {
+        out.write(name + "{" + labels + "} " + value + "\n");
+    }
+
+    private static void sample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name + "{" + labels + "} " + value + "\n");
+    }
+
+    private static String webhookLabel(SlackMetrics metrics) {
+        return "webhook=\"" + escape(metrics.getWebhook()) + "\"";
+    }
+
+    private static String laneLabel(String queue, String triggerName) {
+        return "queue=\"" + escape(queue) + "\",trigger=\"" + escape(triggerName) + "\"";
+    }
+
+    private static double micros(long micros) {
+        return micros / 1e6;
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of messages sent to a single webhook.
+ *
+ * Slack accepts about one message per second per incoming webhook, allowing short bursts. Limiters are shared by
+ * all plugin instances in the JVM and keyed by webhook URL, so every notification configured for the same webhook
+ * draws from the same bucket. The rate and burst a webhook's limiter is first created with apply until Rundeck is
+ * restarted; notifications configured with other values for the same webhook share that limiter as it is. The
+ * webhook's {@link SlackCircuitBreaker} follows the same rule.
+ *
+ * Callers never wait for a token longer than they ask for, so a backlog for a webhook cannot hold a thread
+ * indefinitely.
+ */
+final class SlackRateLimiter {
+
+    private static final ConcurrentMap<String, SlackRateLimiter> LIMITERS = new ConcurrentHashMap<String, SlackRateLimiter>();
+
+    private final double permitsPerSecond;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    private SlackRateLimiter(double permitsPerSecond, double burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Returns the shared limiter of a webhook, creating it with the given settings on first use. The settings of an
+     * existing limiter are left as they are.
+     *
+     * @param webhookUrl webhook URL the limiter is keyed by
+     * @param permitsPerSecond sustained number of messages per second
+     * @param burst number of messages that may be sent back to back
+     * @return shared limiter
+     */
+    static SlackRateLimiter forWebhook(String webhookUrl, double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate limit and burst must be positive: [" + permitsPerSecond + ", " + burst + "].");
+        }
+        SlackRateLimiter limiter = LIMITERS.get(webhookUrl);
+        if (limiter == null) {
+            SlackRateLimiter created = new SlackRateLimiter(permitsPerSecond, burst);
+            limiter = LIMITERS.putIfAbsent(webhookUrl, created);
+            if (limiter == null) {
+                return created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * @return sustained number of messages per second
+     */
+    double permitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Takes a token if one becomes available within the timeout, waiting for it.
+     *
+     * Callers reserve their token immediately and then sleep outside the lock, so waiting callers are served in
+     * the order they arrived.
+     *
+     * @param timeoutNanos maximum time to wait
+     * @return true if a token was taken, false if none is available in time; no token is taken then
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    boolean tryAcquire(long timeoutNanos) throws InterruptedException {
+        long waitNanos = reserve(timeoutNanos);
+        if (waitNanos < 0) {
+            return false;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return true;
+    }
+
+    /**
+     * @return how long a caller asking for a token now would have to wait, without taking one
+     */
+    synchronized long waitNanos() {
+        refill(System.nanoTime());
+        return tokens >= 1 ? 0 : (long) ((1 - tokens) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Takes a token, possibly going into debt, and returns how long the caller has to wait for it.
+     * Returns -1 without taking a token if the wait would be longer than the timeout.
+     */
+    private synchronized long reserve(long timeoutNanos) {
+        refill(System.nanoTime());
+        long waitNanos = tokens >= 1 ? 0 : (long) ((1 - tokens) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+        if (waitNanos > timeoutNanos) {
+            return -1;
+        }
+        tokens -= 1;
+        return waitNanos;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a failed Slack delivery is attempted again.
+ *
+ * Delays grow exponentially from {@link #INITIAL_BACKOFF_MILLIS} up to {@link #MAX_BACKOFF_MILLIS} with full jitter,
+ * unless Slack asks for a specific delay with a Retry-After header. Retries are timed by a shared scheduler so that
+ * waiting for them never holds up a Rundeck execution thread. The scheduler only fires the timers: every attempt is
+ * run on a sender thread of its own, so a slow webhook neither delays other retries nor shifts their backoff.
+ */
+final class SlackRetryPolicy {
+
+    static final long INITIAL_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60000;
+
+    private static final ScheduledExecutorService RETRY_TIMER = createTimer();
+    private static final ExecutorService RETRY_SENDERS = SlackThreads.newSenderExecutor("slack-retry-");
+
+    private final int maxAttempts;
+    private final long deadlineMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param maxAttempts maximum number of attempts, including the first one
+     * @param deadlineMillis time after the first attempt after which no further attempt is started
+     */
+    SlackRetryPolicy(int maxAttempts, long deadlineMillis) {
+        this.maxAttempts = maxAttempts;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Computes the delay before the next attempt.
+     *
+     * @param failedAttempt number of the attempt that just failed, starting at 1
+     * @param elapsedMillis time since the first attempt started
+     * @param retryAfterMillis delay requested by Slack, or -1 if none
+     * @return delay in milliseconds, or -1 if no further attempt should be made
+     */
+    long nextDelayMillis(int failedAttempt, long elapsedMillis, long retryAfterMillis) {
+        if (failedAttempt >= maxAttempts) {
+            return -1;
+        }
+        long delay;
+        if (retryAfterMillis >= 0) {
+            delay = retryAfterMillis;
+        } else {
+            long ceiling = INITIAL_BACKOFF_MILLIS << Math.min(failedAttempt - 1, 16);
+            delay = ThreadLocalRandom.current().nextLong(Math.min(ceiling, MAX_BACKOFF_MILLIS) + 1);
+        }
+        return elapsedMillis + delay > deadlineMillis ? -1 : delay;
+    }
+
+    /**
+     * Runs a retry on a sender thread once the given delay has passed.
+     *
+     * @param retry attempt to run
+     * @param delayMillis delay before running it
+     */
+    static void schedule(final Runnable retry, long delayMillis) {
+        RETRY_TIMER.schedule(new Runnable() {
+            public void run() {
+                RETRY_SENDERS.execute(retry);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param statusCode HTTP status code returned by Slack
+     * @return true if the request may succeed when sent again
+     */
+    static boolean isRetryableStatus(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Parses a Retry-After header value, given either in seconds or as an HTTP date.
+     *
+     * @param retryAfter header value, may be null
+     * @return requested delay in milliseconds, or -1 if the value is missing or invalid
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException numberFormatEx) {
+            // not delta-seconds, try an HTTP date
+        }
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, httpDate.parse(value).getTime() - System.currentTimeMillis());
+        } catch (ParseException parseEx) {
+            return -1;
+        }
+    }
+
+    private static ScheduledExecutorService createTimer() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "slack-retry-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routing rules deciding per notification where it is sent, or whether it is sent at all.
+ *
+ * Rules are written one per line as conditions, an arrow and a target, and the first matching rule wins:
+ * <pre>
+ * trigger=failure group=ops/* -&gt; #ops-alerts
+ * trigger=start -&gt; drop
+ * project=billing job=invoice-run -&gt; T0000/B0000/XXXX #billing
+ * * -&gt; #rundeck
+ * </pre>
+ * Conditions compare the {@code trigger}, {@code project}, {@code group} and {@code job} name; conditions left out
+ * match anything. A group ending in {@code /*} matches the group and every group below it. Targets are a channel,
+ * a webhook token optionally followed by a channel, or {@code drop}.
+ *
+ * Rules are compiled once into an index: rules are looked up by group in a trie of group path segments, and by
+ * trigger, project and job name in hash maps holding the exact and the wildcard combinations. Routing a
+ * notification therefore takes a few hash lookups per group level, however many rules there are.
+ */
+final class SlackRouter {
+
+    /** compiled rule sets, by rule text; few distinct rule sets are expected */
+    private static final ConcurrentMap<String, SlackRouter> ROUTERS = new ConcurrentHashMap<String, SlackRouter>();
+    private static final int MAX_CACHED_ROUTERS = 64;
+
+    private static final String ANY = "\u0001";
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /**
+     * Target of a routing rule.
+     */
+    static final class Route {
+
+        private final boolean drop;
+        private final String webhookToken;
+        private final String channel;
+
+        private Route(boolean drop, String webhookToken, String channel) {
+            this.drop = drop;
+            this.webhookToken = webhookToken;
+            this.channel = channel;
+        }
+
+        /**
+         * @return true if the notification is not sent at all
+         */
+        boolean isDrop() {
+            return drop;
+        }
+
+        /**
+         * @return webhook token to send to, or null for the configured one
+         */
+        String webhookToken() {
+            return webhookToken;
+        }
+
+        /**
+         * @return channel to send to, or null for the configured one
+         */
+        String channel() {
+            return channel;
+        }
+    }
+
+    /**
+     * Node of the group trie, holding the rules for the group path leading to it.
+     */
+    private static final class GroupNode {
+        private final Map<String, GroupNode> children = new HashMap<String, GroupNode>();
+        /** rules for exactly this group, by trigger, project and job key, to the index of the first such rule */
+        private final Map<String, Integer> exactRules = new HashMap<String, Integer>();
+        /** rules for this group and every group below it */
+        private final Map<String, Integer> subtreeRules = new HashMap<String, Integer>();
+    }
+
+    private final GroupNode root = new GroupNode();
+    private final Route[] routes;
+
+    private SlackRouter(String rules) {
+        String[] lines = rules.split("\\r?\\n");
+        routes = new Route[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (!line.isEmpty()) {
+                compile(i, line);
+            }
+        }
+    }
+
+    /**
+     * Returns the compiled router for a rule set, compiling it on first use.
+     *
+     * @param rules rules, one per line
+     * @return router
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    static SlackRouter forRules(String rules) {
+        SlackRouter router = ROUTERS.get(rules);
+        if (router == null) {
+            router = new SlackRouter(rules);
+            if (ROUTERS.size() >= MAX_CACHED_ROUTERS) {
+                ROUTERS.clear();
+            }
+            ROUTERS.put(rules, router);
+        }
+        return router;
+    }
+
+    private void compile(int index, String rule) {
+        int arrow = rule.indexOf("->");
+        if (arrow < 0) {
+            throw new IllegalArgumentException("Invalid routing rule, expected conditions -> target: [" + rule + "].");
+        }
+        String trigger = ANY;
+        String project = ANY;
+        String job = ANY;
+        String group = null;
+        for (String condition : rule.substring(0, arrow).trim().split("\\s+")) {
+            if (condition.isEmpty() || condition.equals("*")) {
+                continue;
+            }
+            int equals = condition.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Invalid routing rule condition, expected key=value: [" + condition + "] in [" + rule + "].");
+            }
+            String key = condition.substring(0, equals);
+            String value = condition.substring(equals + 1);
+            boolean any = value.equals("*");
+            if (key.equals("trigger")) {
+                if (!any && SlackTrigger.forName(value) == null) {
+                    throw new IllegalArgumentException("Unknown trigger in routing rule: [" + value + "] in [" + rule + "].");
+                }
+                trigger = any ? ANY : value;
+            } else if (key.equals("project")) {
+                project = any ? ANY : value;
+            } else if (key.equals("job")) {
+                job = any ? ANY : value;
+            } else if (key.equals("group")) {
+                group = any ? null : value;
+            } else {
+                throw new IllegalArgumentException("Unknown routing rule condition: [" + key + "] in [" + rule + "].");
+            }
+        }
+        routes[index] = parseTarget(rule.substring(arrow + 2).trim(), rule);
+
+        String ruleKey = trigger + KEY_SEPARATOR + project + KEY_SEPARATOR + job;
+        if (group == null) {
+            putFirst(root.subtreeRules, ruleKey, index);
+        } else if (group.equals("/*") || group.endsWith("/*")) {
+            putFirst(node(group.substring(0, group.length() - 2)).subtreeRules, ruleKey, index);
+        } else {
+            putFirst(node(group).exactRules, ruleKey, index);
+        }
+    }
+
+    private static Route parseTarget(String target, String rule) {
+        if (target.equals("drop")) {
+            return new Route(true, null, null);
+        }
+        String[] parts = target.split("\\s+");
+        if (parts[0].isEmpty() || parts.length > 2) {
+            throw new IllegalArgumentException("Invalid routing rule target, expected a channel, a webhook token and an optional channel, or drop: [" + rule + "].");
+        }
+        if (parts.length == 1 && (parts[0].startsWith("#") || parts[0].startsWith("@"))) {
+            return new Route(false, null, parts[0]);
+        }
+        return new Route(false, parts[0], parts.length > 1 ? parts[1] : null);
+    }
+
+    private GroupNode node(String group) {
+        GroupNode node = root;
+        if (group.isEmpty()) {
+            return node;
+        }
+        for (String segment : group.split("/")) {
+            GroupNode child = node.children.get(segment);
+            if (child == null) {
+                child = new GroupNode();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private static void putFirst(Map<String, Integer> rules, String ruleKey, int index) {
+        if (!rules.containsKey(ruleKey)) {
+            rules.put(ruleKey, index);
+        }
+    }
+
+    /**
+     * Finds the first rule matching a notification.
+     *
+     * @param trigger notification trigger
+     * @param executionData execution data passed by Rundeck
+     * @return target of the first matching rule, or null if no rule matched
+     */
+    Route route(SlackTrigger trigger, Map executionData) {
+        Map job = executionData.get("job") instanceof Map ? (Map) executionData.get("job") : null;
+        String project = stringValue(job != null && job.get("project") != null ? job.get("project") : executionData.get("project"));
+        String jobName = stringValue(job != null ? job.get("name") : null);
+        String group = stringValue(job != null ? job.get("group") : null);
+
+        String[] ruleKeys = new String[8];
+        int k = 0;
+        for (String triggerKey : new String[]{trigger.triggerName(), ANY}) {
+            for (String projectKey : new String[]{project, ANY}) {
+                for (String jobKey : new String[]{jobName, ANY}) {
+                    ruleKeys[k++] = triggerKey + KEY_SEPARATOR + projectKey + KEY_SEPARATOR + jobKey;
+                }
+            }
+        }
+
+        int first = firstMatch(root.subtreeRules, ruleKeys, Integer.MAX_VALUE);
+        GroupNode node = root;
+        if (!group.isEmpty()) {
+            for (String segment : group.split("/")) {
+                node = node.children.get(segment);
+                if (node == null) {
+                    break;
+                }
+                first = firstMatch(node.subtreeRules, ruleKeys, first);
+            }
+        }
+        if (node != null) {
+            first = firstMatch(node.exactRules, ruleKeys, first);
+        }
+        return first == Integer.MAX_VALUE ? null : routes[first];
+    }
+
+    private static int firstMatch(Map<String, Integer> rules, String[] ruleKeys, int first) {
+        if (rules.isEmpty()) {
+            return first;
+        }
+        for (String ruleKey : ruleKeys) {
+            Integer index = rules.get(ruleKey);
+            if (index != null && index < first) {
+                first = index;
+            }
+        }
+        return first;
+    }
+
+    private static String stringValue(Object value) {
+        return value != null ? value.toString() : "";
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead spool of rendered messages, so that undelivered notifications survive Slack outages and
+ * Rundeck restarts.
+ *
+ * Messages are appended to memory-mapped segment files and flushed to disk before they are sent, and acknowledged once
+ * Slack accepted them. Acknowledgements are not flushed: one lost in a crash only makes the message be sent again.
+ * When the spool is opened, messages that were never acknowledged are recovered for redelivery, and so are messages
+ * handed back after their retries ran out. The spool keeps a bounded number of messages, dropping the oldest to make
+ * room, so that a long outage cannot grow it without limit. A full segment
+ * is flushed to disk and a new one started; fully acknowledged segments are deleted, and the live messages of old
+ * segments are copied forward so that a few stuck messages do not keep old segments around. Delivery is at least
+ * once: a crash during compaction may recover a message that was already delivered.
+ *
+ * Segment records are laid out as
+ * {@code type (1 byte) | key (8 bytes) | body length (4 bytes) | CRC32 of body (4 bytes) | body}. A zero type marks
+ * the unused end of a segment. Message bodies hold the webhook URL, the payload format and the encoded request body,
+ * each prefixed by its 4 byte length; acknowledgement bodies are empty.
+ */
+final class SlackSpool {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_PREFIX = "slack-spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_MESSAGE = 1;
+    private static final byte RECORD_ACK = 2;
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 4 + 4;
+
+    /** number of full segments kept before the live messages of the oldest are copied forward */
+    private static final int MAX_SEALED_SEGMENTS = 2;
+
+    private static final ConcurrentMap<String, SlackSpool> SPOOLS = new ConcurrentHashMap<String, SlackSpool>();
+
+    /**
+     * Spooled message, used to acknowledge it once delivered.
+     */
+    static final class Entry {
+
+        private final SlackSpool spool;
+        private final long key;
+        private final String webhookUrl;
+        private final SlackPayload payload;
+        private long segment;
+
+        private Entry(SlackSpool spool, long key, String webhookUrl, SlackPayload payload, long segment) {
+            this.spool = spool;
+            this.key = key;
+            this.webhookUrl = webhookUrl;
+            this.payload = payload;
+            this.segment = segment;
+        }
+
+        String webhookUrl() {
+            return webhookUrl;
+        }
+
+        SlackPayload payload() {
+            return payload;
+        }
+
+        /**
+         * Marks the message as done, so that it is not recovered again.
+         */
+        void acknowledge() {
+            spool.acknowledge(this);
+        }
+
+        /**
+         * Hands the message back for redelivery, like one recovered after a restart, once its retries ran out.
+         */
+        void requeue() {
+            spool.requeue(this);
+        }
+    }
+
+    private static final class Segment {
+
+        private final long sequence;
+        private final File file;
+        private MappedByteBuffer buffer;
+        private int liveEntries;
+
+        Segment(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxMessages;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<Long, Entry> liveEntries = new LinkedHashMap<Long, Entry>();
+    private final List<Entry> recovered;
+    private Segment active;
+    private long nextKey;
+
+    private SlackSpool(File directory, int segmentSize, int maxMessages) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxMessages = maxMessages;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        replay();
+        this.recovered = new ArrayList<Entry>(liveEntries.values());
+        long lastSequence = segments.isEmpty() ? 0 : segments.lastKey();
+        startSegment(lastSequence + 1, segmentSize);
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Returns the shared spool for a directory, opening it and recovering unacknowledged messages on first use. The
+     * settings of the first use are kept.
+     *
+     * @param directory spool directory
+     * @param segmentSize size of each segment file in bytes
+     * @param maxMessages maximum number of unacknowledged messages kept
+     * @return shared spool
+     */
+    static SlackSpool forDirectory(File directory, int segmentSize, int maxMessages) {
+        String key = directory.getAbsolutePath();
+        SlackSpool spool = SPOOLS.get(key);
+        if (spool == null) {
+            synchronized (SPOOLS) {
+                spool = SPOOLS.get(key);
+                if (spool == null) {
+                    spool = open(directory, segmentSize, maxMessages);
+                    SPOOLS.put(key, spool);
+                }
+            }
+        }
+        return spool;
+    }
+
+    /**
+     * Opens a spool of its own for a directory, recovering unacknowledged messages as after a restart.
+     *
+     * @param directory spool directory
+     * @param segmentSize size of each segment file in bytes
+     * @param maxMessages maximum number of unacknowledged messages kept
+     * @return spool that is not shared
+     */
+    static SlackSpool open(File directory, int segmentSize, int maxMessages) {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Spool segment size must be at least 1024 bytes: [" + segmentSize + "].");
+        }
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Spool message limit must be positive: [" + maxMessages + "].");
+        }
+        try {
+            return new SlackSpool(directory.getAbsoluteFile(), segmentSize, maxMessages);
+        } catch (IOException ioEx) {
+            throw new SlackNotificationPluginException("Error opening Slack notification spool: [" + ioEx.getMessage() + "].", ioEx);
+        }
+    }
+
+    /**
+     * @return number of unacknowledged messages of every open spool, by spool directory
+     */
+    static Map<String, Integer> backlogs() {
+        Map<String, Integer> backlogs = new TreeMap<String, Integer>();
+        for (Map.Entry<String, SlackSpool> spool : SPOOLS.entrySet()) {
+            backlogs.put(spool.getKey(), spool.getValue().backlog());
+        }
+        return backlogs;
+    }
+
+    /**
+     * Hands out the messages recovered when the spool was opened or handed back since. Each message is returned only
+     * once, to the first caller, which is responsible for delivering and acknowledging it.
+     *
+     * @return recovered messages, oldest first
+     */
+    synchronized List<Entry> takeRecovered() {
+        List<Entry> entries = new ArrayList<Entry>(recovered);
+        recovered.clear();
+        return entries;
+    }
+
+    /**
+     * Writes a message to the spool and flushes it to disk before it is delivered. When the spool is full, the oldest
+     * message is dropped to make room.
+     *
+     * @param webhookUrl webhook the message is sent to
+     * @param payload encoded message
+     * @return spooled entry, to acknowledge once delivered
+     */
+    synchronized Entry append(String webhookUrl, SlackPayload payload) {
+        if (liveEntries.size() >= maxMessages) {
+            Entry oldest = liveEntries.values().iterator().next();
+            System.err.printf("Slack notification spool %s holds %d messages, dropping the oldest%n", directory, maxMessages);
+            acknowledge(oldest);
+        }
+        Entry entry = new Entry(this, nextKey++, webhookUrl, payload, 0);
+        try {
+            writeMessage(entry, messageBody(entry));
+            active.buffer.force();
+        } catch (IOException ioEx) {
+            throw new SlackNotificationPluginException("Error writing to Slack notification spool: [" + ioEx.getMessage() + "].", ioEx);
+        }
+        liveEntries.put(entry.key, entry);
+        return entry;
+    }
+
+    private synchronized void requeue(Entry entry) {
+        if (liveEntries.containsKey(entry.key) && !recovered.contains(entry)) {
+            recovered.add(entry);
+        }
+    }
+
+    private synchronized void acknowledge(Entry entry) {
+        if (liveEntries.remove(entry.key) == null) {
+            return;
+        }
+        recovered.remove(entry);
+        try {
+            writeRecord(RECORD_ACK, entry.key, new byte[0]);
+        } catch (IOException ioEx) {
+            throw new SlackNotificationPluginException("Error writing to Slack notification spool: [" + ioEx.getMessage() + "].", ioEx);
+        }
+        Segment segment = segments.get(entry.segment);
+        if (segment != null) {
+            segment.liveEntries--;
+        }
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * @return number of messages written but not yet acknowledged
+     */
+    synchronized int backlog() {
+        return liveEntries.size();
+    }
+
+    private static byte[] messageBody(Entry entry) {
+        byte[] url = entry.webhookUrl.getBytes(UTF_8);
+        byte[] format = entry.payload.format().name().getBytes(UTF_8);
+        SlackPayload payload = entry.payload;
+        byte[] body = new byte[12 + url.length + format.length + payload.length()];
+        int position = putBytes(body, 0, url, url.length);
+        position = putBytes(body, position, format, format.length);
+        putBytes(body, position, payload.body(), payload.length());
+        return body;
+    }
+
+    private void writeMessage(Entry entry, byte[] body) throws IOException {
+        writeRecord(RECORD_MESSAGE, entry.key, body);
+        entry.segment = active.sequence;
+        active.liveEntries++;
+    }
+
+    private static int putBytes(byte[] target, int position, byte[] bytes, int length) {
+        target[position] = (byte) (length >>> 24);
+        target[position + 1] = (byte) (length >>> 16);
+        target[position + 2] = (byte) (length >>> 8);
+        target[position + 3] = (byte) length;
+        System.arraycopy(bytes, 0, target, position + 4, length);
+        return position + 4 + length;
+    }
+
+    private void writeRecord(byte type, long key, byte[] body) throws IOException {
+        int size = RECORD_HEADER_SIZE + body.length;
+        // keep room for the end marker
+        while (active.buffer.remaining() < size + 1) {
+            rotate(size + 1);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        MappedByteBuffer buffer = active.buffer;
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putLong(key);
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body);
+        // the type is written last, so a torn record is never taken for a complete one
+        buffer.put(start, type);
+    }
+
+    /**
+     * Seals the active segment and starts a new one. The live messages of the oldest sealed segments are copied into
+     * the new segment, so that at most {@link #MAX_SEALED_SEGMENTS} sealed segments are kept, and the new segment is
+     * sized to hold them as well as a record of the given size.
+     */
+    private void rotate(int recordSize) throws IOException {
+        active.buffer.force();
+        deleteAcknowledgedSegments();
+
+        int excess = segments.size() - MAX_SEALED_SEGMENTS;
+        List<Long> compacted = new ArrayList<Long>();
+        for (Long sequence : segments.keySet()) {
+            if (compacted.size() >= excess) {
+                break;
+            }
+            compacted.add(sequence);
+        }
+        List<Entry> carried = new ArrayList<Entry>();
+        List<byte[]> carriedBodies = new ArrayList<byte[]>();
+        long carriedSize = 0;
+        for (Entry entry : liveEntries.values()) {
+            if (compacted.contains(entry.segment)) {
+                byte[] body = messageBody(entry);
+                carried.add(entry);
+                carriedBodies.add(body);
+                carriedSize += RECORD_HEADER_SIZE + body.length;
+            }
+        }
+        long size = carriedSize + Math.max(segmentSize, recordSize);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Spool segment would exceed 2 GiB, " + carried.size() + " messages to carry forward");
+        }
+
+        startSegment(active.sequence + 1, (int) size);
+        // carried entries are rewritten with their original key, so an older copy and its acknowledgement match
+        for (int i = 0; i < carried.size(); i++) {
+            Entry entry = carried.get(i);
+            segments.get(entry.segment).liveEntries--;
+            writeMessage(entry, carriedBodies.get(i));
+        }
+        if (!carried.isEmpty()) {
+            active.buffer.force();
+        }
+        deleteAcknowledgedSegments();
+    }
+
+    private void startSegment(long sequence, int size) throws IOException {
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        Segment segment = new Segment(sequence, file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+        segments.put(sequence, segment);
+        active = segment;
+    }
+
+    /**
+     * Deletes the oldest segments as long as they hold no live messages. Segments are only ever deleted oldest first:
+     * an acknowledgement is always written after its message, so this never drops the acknowledgement of a message
+     * that is still on disk.
+     */
+    private void deleteAcknowledgedSegments() {
+        Iterator<Segment> oldestFirst = segments.values().iterator();
+        while (oldestFirst.hasNext()) {
+            Segment segment = oldestFirst.next();
+            if (segment == active || segment.liveEntries > 0) {
+                return;
+            }
+            oldestFirst.remove();
+            segment.buffer = null;
+            if (!segment.file.delete()) {
+                System.err.printf("Could not delete Slack notification spool segment %s%n", segment.file);
+            }
+        }
+    }
+
+    /**
+     * Reads all segments in order, collecting the messages that were never acknowledged. Keys are handed out in
+     * append order, so ordering by key recovers the messages oldest first even when compaction copied them forward.
+     */
+    private void replay() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list spool directory " + directory);
+        }
+        Arrays.sort(files);
+        TreeMap<Long, Entry> entries = new TreeMap<Long, Entry>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(sequence, file);
+            segments.put(sequence, segment);
+            readSegment(segment, entries);
+        }
+        for (Entry entry : entries.values()) {
+            liveEntries.put(entry.key, entry);
+            segments.get(entry.segment).liveEntries++;
+        }
+    }
+
+    private void readSegment(Segment segment, Map<Long, Entry> entries) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        try {
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                byte type = buffer.get();
+                if (type == RECORD_END) {
+                    return;
+                }
+                long key = buffer.getLong();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    return;
+                }
+                byte[] body = new byte[length];
+                buffer.get(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    System.err.printf("Corrupt record in Slack notification spool segment %s, ignoring the rest of it%n", segment.file);
+                    return;
+                }
+                nextKey = Math.max(nextKey, key + 1);
+                if (type == RECORD_ACK) {
+                    entries.remove(key);
+                } else if (type == RECORD_MESSAGE) {
+                    entries.put(key, readEntry(key, body, segment.sequence));
+                }
+            }
+        } catch (BufferUnderflowException underflowEx) {
+            // torn record at the end of the segment
+        } catch (IllegalArgumentException invalidEx) {
+            System.err.printf("Invalid record in Slack notification spool segment %s: %s%n", segment.file, invalidEx.getMessage());
+        }
+    }
+
+    private Entry readEntry(long key, byte[] body, long segment) {
+        int[] position = {0};
+        String webhookUrl = getString(body, position);
+        SlackPayload.Format format = SlackPayload.Format.valueOf(getString(body, position));
+        byte[] requestBody = getBytes(body, position);
+        return new Entry(this, key, webhookUrl, SlackPayload.fromBody(format, requestBody), segment);
+    }
+
+    private static String getString(byte[] body, int[] position) {
+        return new String(getBytes(body, position), UTF_8);
+    }
+
+    private static byte[] getBytes(byte[] body, int[] position) {
+        int p = position[0];
+        int length = ((body[p] & 0xFF) << 24) | ((body[p + 1] & 0xFF) << 16) | ((body[p + 2] & 0xFF) << 8) | (body[p + 3] & 0xFF);
+        if (length < 0 || p + 4 + length > body.length) {
+            throw new IllegalArgumentException("field length out of bounds");
+        }
+        position[0] = p + 4 + length;
+        return Arrays.copyOfRange(body, p + 4, p + 4 + length);
+    }
+}
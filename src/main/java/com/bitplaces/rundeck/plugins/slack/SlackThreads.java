@@ -0,0 +1,51 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that send messages to Slack: for the delivery queue, the fan-out and the retries.
+ *
+ * This is the Java 8 version, running sends on pooled daemon platform threads. The multi-release jar holds a Java 21
+ * version under META-INF/versions/21 that pools virtual threads instead, so blocked sends cost no platform thread.
+ *
+ * Both versions reuse idle threads, so the payload writer and read buffer kept per thread by {@link SlackPayload} and
+ * {@link SlackHttpResponse} are reused across sends rather than allocated for each one.
+ */
+final class SlackThreads {
+
+    private SlackThreads() {
+    }
+
+    /**
+     * @param namePrefix thread name prefix, followed by a counter starting at 1
+     * @return unbounded executor of daemon sender threads, reusing idle ones
+     */
+    static ExecutorService newSenderExecutor(final String namePrefix) {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Equivalent webhooks posting to the same channel, used to spread messages over several webhooks since Slack rate
+ * limits each webhook on its own.
+ *
+ * Webhooks are either picked by consistent hashing, so that the messages of one job always use the same webhook and
+ * stay in order, or by load, taking the webhook a message would wait the least for. Pools are shared JVM-wide and
+ * keyed by their webhooks.
+ */
+final class SlackTokenPool {
+
+    /**
+     * How a webhook is picked for a message.
+     */
+    enum Selection {
+        /** the same webhook for the same key, moving few keys when webhooks are added or removed */
+        CONSISTENT_HASH("consistent-hash"),
+        /** the webhook with the least load */
+        LEAST_LOADED("least-loaded");
+
+        private final String selectionName;
+
+        Selection(String selectionName) {
+            this.selectionName = selectionName;
+        }
+
+        static Selection forName(String selectionName) {
+            for (Selection selection : values()) {
+                if (selection.selectionName.equals(selectionName)) {
+                    return selection;
+                }
+            }
+            throw new IllegalArgumentException("Unknown token selection: [" + selectionName + "].");
+        }
+    }
+
+    /**
+     * Load of a webhook, lower is better.
+     */
+    interface Load {
+        long of(String webhookUrl);
+    }
+
+    /** points each webhook gets on the hash ring, evening out the share of keys per webhook */
+    private static final int POINTS_PER_WEBHOOK = 128;
+
+    private static final ConcurrentMap<String, SlackTokenPool> POOLS = new ConcurrentHashMap<String, SlackTokenPool>();
+
+    private final List<String> webhookUrls;
+    private final long[] ringHashes;
+    private final String[] ringWebhooks;
+
+    private SlackTokenPool(List<String> webhookUrls) {
+        this.webhookUrls = Collections.unmodifiableList(webhookUrls);
+        List<long[]> points = new ArrayList<long[]>(webhookUrls.size() * POINTS_PER_WEBHOOK);
+        for (int webhook = 0; webhook < webhookUrls.size(); webhook++) {
+            for (int point = 0; point < POINTS_PER_WEBHOOK; point++) {
+                points.add(new long[]{hash(webhookUrls.get(webhook) + "#" + point), webhook});
+            }
+        }
+        Collections.sort(points, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+        ringHashes = new long[points.size()];
+        ringWebhooks = new String[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            ringHashes[i] = points.get(i)[0];
+            ringWebhooks[i] = webhookUrls.get((int) points.get(i)[1]);
+        }
+    }
+
+    /**
+     * Returns the shared pool of a webhook and its equivalent tokens.
+     *
+     * @param webhookBaseUrl base URL the tokens are appended to
+     * @param webhookToken configured webhook token
+     * @param poolTokens further tokens for the same channel, separated by commas or white space
+     * @return shared pool
+     */
+    static SlackTokenPool forTokens(String webhookBaseUrl, String webhookToken, String poolTokens) {
+        String key = webhookBaseUrl + " " + webhookToken + " " + poolTokens;
+        SlackTokenPool pool = POOLS.get(key);
+        if (pool == null) {
+            List<String> webhookUrls = new ArrayList<String>();
+            webhookUrls.add(webhookBaseUrl + "/" + webhookToken);
+            for (String token : poolTokens.trim().split("[,\\s]+")) {
+                String webhookUrl = webhookBaseUrl + "/" + token;
+                if (!token.isEmpty() && !webhookUrls.contains(webhookUrl)) {
+                    webhookUrls.add(webhookUrl);
+                }
+            }
+            SlackTokenPool created = new SlackTokenPool(webhookUrls);
+            pool = POOLS.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return webhooks of the pool, the configured one first
+     */
+    List<String> webhookUrls() {
+        return webhookUrls;
+    }
+
+    /**
+     * Picks the webhook for a message.
+     *
+     * @param selection how to pick the webhook
+     * @param key key of the message for consistent hashing, like the job id
+     * @param load load of each webhook, for least-loaded selection
+     * @return webhook URL
+     */
+    String select(Selection selection, String key, Load load) {
+        if (webhookUrls.size() == 1) {
+            return webhookUrls.get(0);
+        }
+        if (selection == Selection.CONSISTENT_HASH) {
+            return onRing(key);
+        }
+        // start at a random webhook so that equally loaded webhooks share the messages
+        int size = webhookUrls.size();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        String selected = null;
+        long selectedLoad = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            String webhookUrl = webhookUrls.get((start + i) % size);
+            long webhookLoad = load.of(webhookUrl);
+            if (selected == null || webhookLoad < selectedLoad) {
+                selected = webhookUrl;
+                selectedLoad = webhookLoad;
+            }
+        }
+        return selected;
+    }
+
+    private String onRing(String key) {
+        long keyHash = hash(key);
+        int low = 0;
+        int high = ringHashes.length;
+        // first point at or after the key's hash, wrapping around to the first point
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ringHashes[middle] < keyHash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return ringWebhooks[low == ringHashes.length ? 0 : low];
+    }
+
+    /**
+     * 64 bit FNV-1a hash, with the MurmurHash3 finalizer for an even spread of similar keys.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53ae63bL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rundeck job notification events handled by the plugin, together with the Slack attachment color used for each.
+ *
+ * The lookup table is built once when the enum is initialized and never modified afterwards.
+ */
+enum SlackTrigger {
+
+    START("start", SlackTrigger.COLOR_YELLOW),
+    SUCCESS("success", SlackTrigger.COLOR_GREEN),
+    FAILURE("failure", SlackTrigger.COLOR_RED),
+    AVERAGE("avgduration", SlackTrigger.COLOR_YELLOW),
+    ONRETRY("retryablefailure", SlackTrigger.COLOR_YELLOW);
+
+    private static final String COLOR_GREEN = "good";
+    private static final String COLOR_YELLOW = "warning";
+    private static final String COLOR_RED = "danger";
+
+    private static final Map<String, SlackTrigger> BY_NAME;
+
+    static {
+        Map<String, SlackTrigger> byName = new HashMap<String, SlackTrigger>();
+        for (SlackTrigger trigger : values()) {
+            byName.put(trigger.triggerName, trigger);
+        }
+        BY_NAME = Collections.unmodifiableMap(byName);
+    }
+
+    private final String triggerName;
+    private final String color;
+
+    SlackTrigger(String triggerName, String color) {
+        this.triggerName = triggerName;
+        this.color = color;
+    }
+
+    /**
+     * @return trigger name as used by Rundeck, like "success"
+     */
+    String triggerName() {
+        return triggerName;
+    }
+
+    /**
+     * @return Slack attachment color for this trigger
+     */
+    String color() {
+        return color;
+    }
+
+    /**
+     * Looks up a trigger by its Rundeck name.
+     *
+     * @param triggerName name of the job notification event
+     * @return matching trigger, or null if the name is unknown
+     */
+    static SlackTrigger forName(String triggerName) {
+        return triggerName == null ? null : BY_NAME.get(triggerName);
+    }
+}
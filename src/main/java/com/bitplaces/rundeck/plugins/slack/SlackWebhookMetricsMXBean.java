@@ -0,0 +1,119 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of one webhook, registered as
+ * {@code com.bitplaces.rundeck.plugins.slack:type=Webhook,name="<webhook label>"}.
+ */
+public interface SlackWebhookMetricsMXBean {
+
+    /**
+     * @return webhook host and path, with the secret part of the token replaced by a hash
+     */
+    String getWebhook();
+
+    /**
+     * @return number of messages Slack accepted
+     */
+    long getSentCount();
+
+    /**
+     * @return number of messages given up on, after retries
+     */
+    long getFailedCount();
+
+    /**
+     * @return number of retries scheduled
+     */
+    long getRetryCount();
+
+    /**
+     * @return number of messages discarded because the delivery queue was full
+     */
+    long getDroppedCount();
+
+    /**
+     * @return number of delivery attempts not made because the circuit breaker was open
+     */
+    long getCircuitOpenCount();
+
+    /**
+     * @return number of HTTP requests to Slack currently in progress
+     */
+    int getInFlightRequests();
+
+    /**
+     * @return number of messages to the webhook waiting in the asynchronous delivery queues
+     */
+    int getQueueDepth();
+
+    /**
+     * @return state of the webhook's circuit breaker
+     */
+    String getCircuitState();
+
+    /**
+     * @return number of HTTP responses by status code
+     */
+    Map<String, Long> getResponseCodes();
+
+    /**
+     * @return number of failed attempts by Slack response, or by failure category if Slack did not answer
+     */
+    Map<String, Long> getFailureReasons();
+
+    /**
+     * @return median time spent rendering messages, in microseconds
+     */
+    long getRenderTimeP50Micros();
+
+    /**
+     * @return 90th percentile of time spent rendering messages, in microseconds
+     */
+    long getRenderTimeP90Micros();
+
+    /**
+     * @return 99th percentile of time spent rendering messages, in microseconds
+     */
+    long getRenderTimeP99Micros();
+
+    /**
+     * @return longest time spent rendering messages, in microseconds
+     */
+    long getRenderTimeMaxMicros();
+
+    /**
+     * @return median time spent on HTTP requests to Slack, failed ones included, in microseconds
+     */
+    long getHttpTimeP50Micros();
+
+    /**
+     * @return 90th percentile of time spent on HTTP requests to Slack, failed ones included, in microseconds
+     */
+    long getHttpTimeP90Micros();
+
+    /**
+     * @return 99th percentile of time spent on HTTP requests to Slack, failed ones included, in microseconds
+     */
+    long getHttpTimeP99Micros();
+
+    /**
+     * @return longest time spent on HTTP requests to Slack, failed ones included, in microseconds
+     */
+    long getHttpTimeMaxMicros();
+}
@@ -0,0 +1,40 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors that send messages to Slack: for the delivery queue, the fan-out and the retries.
+ *
+ * This is the Java 21 version, loaded from META-INF/versions/21 of the multi-release jar. Sends run on virtual
+ * threads, which give up their carrier thread while blocked on the Slack webhook. Idle virtual threads are kept for
+ * reuse like the Java 8 platform threads, so their per-thread payload writer and read buffer are not allocated anew
+ * for every send.
+ */
+final class SlackThreads {
+
+    private SlackThreads() {
+    }
+
+    /**
+     * @param namePrefix thread name prefix, followed by a counter starting at 1
+     * @return unbounded executor of virtual sender threads, reusing idle ones
+     */
+    static ExecutorService newSenderExecutor(String namePrefix) {
+        return Executors.newCachedThreadPool(Thread.ofVirtual().name(namePrefix, 1).factory());
+    }
+}
@@ -0,0 +1,66 @@
+<#macro attachment trigger color executionData repeatCount=0>
+<#if executionData.job.group??>
+    <#local jobName="${executionData.job.group} / ${executionData.job.name}">
+<#else>
+    <#local jobName="${executionData.job.name}">
+</#if>
+<#local message="<${executionData.href}|Execution #${executionData.id}> of job <${executionData.job.href}|${jobName}>">
+<#if repeatCount gt 0>
+    <#local message="${message} (repeated ${repeatCount} times)">
+</#if>
+<#if trigger == "start">
+    <#local state="Started">
+<#elseif trigger == "failure">
+    <#local state="Failed">
+<#elseif trigger == "avgduration">
+    <#local state="Average exceeded">
+<#elseif trigger == "retryablefailure">
+   <#local state="Retry Failure">
+<#else>
+   <#local state="Succeeded">
+</#if>
+      {
+         "fallback":"${state}: ${message}",
+         "pretext":"${message}",
+         "color":"${color}",
+         "fields":[
+            {
+               "title":"Job Name",
+               "value":"<${executionData.job.href}|${jobName}>",
+               "short":true
+            },
+            {
+               "title":"Project",
+               "value":"${executionData.project}",
+               "short":true
+            },
+            {
+               "title":"Status",
+               "value":"${state}",
+               "short":true
+            },
+            {
+               "title":"Execution ID",
+               "value":"<${executionData.href}|#${executionData.id}>",
+               "short":true
+            },
+            {
+               "title":"Options",
+               "value":"${(executionData.argstring?replace('"', '\''))!"N/A"}",
+               "short":true
+            },
+            {
+               "title":"Started By",
+               "value":"${executionData.user}",
+               "short":true
+            }
+<#if trigger == "failure">
+            ,{
+               "title":"Failed Nodes",
+               "value":"${executionData.failedNodeListString!"- (Job itself failed)"}",
+               "short":false
+            }
+</#if>
+]
+      }
+</#macro>
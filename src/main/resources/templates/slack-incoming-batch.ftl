@@ -0,0 +1,15 @@
+<#include "slack-incoming-attachment.ftl">
+
+{
+<#if channel??>
+   "channel":"${channel}",
+</#if>
+   "attachments":[
+<#list notifications as notification>
+<@attachment trigger=notification.trigger color=notification.color executionData=notification.executionData/>
+<#if notification_has_next>
+      ,
+</#if>
+</#list>
+   ]
+}
@@ -0,0 +1,32 @@
+<#assign stateNames={"start":"Started", "success":"Succeeded", "failure":"Failed", "avgduration":"Average exceeded", "retryablefailure":"Retry Failure"}>
+<#macro countList counts><#list counts?keys as trigger>${stateNames[trigger]}: ${counts[trigger]}<#if trigger_has_next>, </#if></#list></#macro>
+<#assign summary><@countList counts=totals/></#assign>
+<#assign message="Rundeck digest from ${windowStart?time} to ${windowEnd?time}">
+
+{
+<#if channel??>
+   "channel":"${channel}",
+</#if>
+   "attachments":[
+      {
+         "fallback":"${message}: ${summary}",
+         "pretext":"${message}",
+         "color":"${color}",
+         "text":"${summary}",
+         "fields":[
+<#list jobs as job>
+<#if job.group??>
+    <#assign jobName="${job.group} / ${job.name}">
+<#else>
+    <#assign jobName="${job.name}">
+</#if>
+            {
+               "title":"${job.project}",
+               "value":"<#if job.href??><${job.href}|${jobName}><#else>${jobName}</#if>: <@countList counts=job.counts/>",
+               "short":false
+            }<#if job_has_next>,</#if>
+</#list>
+         ]
+      }
+   ]
+}
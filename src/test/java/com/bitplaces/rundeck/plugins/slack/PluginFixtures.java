@@ -0,0 +1,132 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Realistic notification input and plugin configuration for the tests and benchmarks.
+ */
+final class PluginFixtures {
+
+    private PluginFixtures() {
+    }
+
+    /**
+     * Builds execution data shaped like the map Rundeck passes to notification plugins.
+     *
+     * @param optionCount number of job options in the argstring
+     * @param failedNodeCount number of nodes in the failed node list
+     * @return execution data
+     */
+    static Map<String, Object> executionData(int optionCount, int failedNodeCount) {
+        Map<String, Object> job = new HashMap<String, Object>();
+        job.put("id", "8f1c2c8e-3f5a-4c55-9d1c-5b7d2f3e6a10");
+        job.put("name", "nightly-database-backup");
+        job.put("group", "ops/backup/databases");
+        job.put("project", "production");
+        job.put("href", "https://rundeck.example.com/project/production/job/show/8f1c2c8e-3f5a-4c55-9d1c-5b7d2f3e6a10");
+        job.put("averageDuration", 734512L);
+
+        StringBuilder argstring = new StringBuilder();
+        for (int i = 0; i < optionCount; i++) {
+            argstring.append(i == 0 ? "" : " ").append("-option").append(i).append(" \"value number ").append(i).append('"');
+        }
+
+        StringBuilder failedNodes = new StringBuilder();
+        for (int i = 0; i < failedNodeCount; i++) {
+            failedNodes.append(i == 0 ? "" : ",").append("db-node-").append(i).append(".prod.example.com");
+        }
+
+        Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("id", 482213L);
+        executionData.put("href", "https://rundeck.example.com/project/production/execution/show/482213");
+        executionData.put("status", failedNodeCount > 0 ? "failed" : "succeeded");
+        executionData.put("user", "scheduler");
+        executionData.put("project", "production");
+        executionData.put("dateStartedUnixtime", 1500000000000L);
+        executionData.put("dateEndedUnixtime", 1500000734512L);
+        executionData.put("argstring", optionCount > 0 ? argstring.toString() : null);
+        executionData.put("failedNodeListString", failedNodeCount > 0 ? failedNodes.toString() : null);
+        executionData.put("job", job);
+        return executionData;
+    }
+
+    /**
+     * Configures a plugin instance the way Rundeck does, by setting its property fields.
+     *
+     * @param plugin plugin instance
+     * @param properties property values, converted to the field type
+     * @return the plugin instance
+     */
+    static SlackNotificationPlugin configure(SlackNotificationPlugin plugin, Map<String, String> properties) {
+        try {
+            for (Field field : SlackNotificationPlugin.class.getDeclaredFields()) {
+                String value = properties.get(field.getName());
+                if (value == null) {
+                    continue;
+                }
+                field.setAccessible(true);
+                if (field.getType() == int.class) {
+                    field.setInt(plugin, Integer.parseInt(value));
+                } else if (field.getType() == boolean.class) {
+                    field.setBoolean(plugin, Boolean.parseBoolean(value));
+                } else {
+                    field.set(plugin, value);
+                }
+            }
+        } catch (IllegalAccessException accessEx) {
+            throw new IllegalStateException(accessEx);
+        }
+        return plugin;
+    }
+
+    /**
+     * @return property values matching the plugin defaults, without rate limit, retries or spool
+     */
+    static Map<String, String> defaultProperties() {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("webhook_base_url", "https://hooks.slack.com/services");
+        properties.put("webhook_token", "T00000000/B00000000/XXXXXXXXXXXXXXXXXXXXXXXX");
+        properties.put("token_selection", "consistent-hash");
+        properties.put("slack_channel", "#rundeck");
+        properties.put("destination_quorum", "0");
+        properties.put("payload_format", "form");
+        properties.put("async_dispatch", "false");
+        properties.put("async_queue_capacity", "1000");
+        properties.put("async_workers", "2");
+        properties.put("async_overflow_policy", "block");
+        properties.put("async_starvation_limit", "30");
+        properties.put("rate_limit", "0");
+        properties.put("rate_limit_burst", "5");
+        properties.put("rate_limit_max_wait", "5");
+        properties.put("connect_timeout", "10");
+        properties.put("read_timeout", "30");
+        properties.put("notification_timeout", "60");
+        properties.put("retry_max_attempts", "1");
+        properties.put("retry_deadline", "300");
+        properties.put("circuit_breaker_threshold", "5");
+        properties.put("circuit_breaker_open_time", "30");
+        properties.put("spool_dir", "");
+        properties.put("spool_segment_size", "4096");
+        properties.put("spool_max_messages", "10000");
+        properties.put("http_keep_alive", "true");
+        properties.put("metrics_file", "");
+        properties.put("metrics_file_interval", "60");
+        return properties;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SlackBatcherTest {
+
+    private static final AtomicInteger KEYS = new AtomicInteger();
+
+    private final BlockingQueue<List<Map<String, Object>>> flushed = new LinkedBlockingQueue<List<Map<String, Object>>>();
+
+    @Test
+    public void flushesBatchWhenWindowEnds() throws InterruptedException {
+        String key = uniqueKey();
+
+        SlackBatcher.add(key, 100, 10, notification(1), flusher());
+        SlackBatcher.add(key, 100, 10, notification(2), flusher());
+
+        assertEquals(numbers(1, 2), numbersOf(flushed.poll(5, TimeUnit.SECONDS)));
+        assertNull(flushed.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void flushesFullBatchRightAway() throws InterruptedException {
+        String key = uniqueKey();
+
+        for (int i = 1; i <= 5; i++) {
+            SlackBatcher.add(key, TimeUnit.MINUTES.toMillis(10), 2, notification(i), flusher());
+        }
+
+        assertEquals(numbers(1, 2), numbersOf(flushed.poll(5, TimeUnit.SECONDS)));
+        assertEquals(numbers(3, 4), numbersOf(flushed.poll(5, TimeUnit.SECONDS)));
+        assertNull(flushed.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void limitsBatchToSlackAttachmentLimit() throws InterruptedException {
+        String key = uniqueKey();
+
+        for (int i = 0; i < SlackBatcher.MAX_ATTACHMENTS; i++) {
+            SlackBatcher.add(key, TimeUnit.MINUTES.toMillis(10), 1000, notification(i), flusher());
+        }
+
+        assertEquals(SlackBatcher.MAX_ATTACHMENTS, flushed.poll(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void keepsBatchesOfDifferentKeysApart() throws InterruptedException {
+        String first = uniqueKey();
+        String second = uniqueKey();
+
+        SlackBatcher.add(first, TimeUnit.MINUTES.toMillis(10), 2, notification(1), flusher());
+        SlackBatcher.add(second, TimeUnit.MINUTES.toMillis(10), 2, notification(2), flusher());
+        SlackBatcher.add(first, TimeUnit.MINUTES.toMillis(10), 2, notification(3), flusher());
+
+        assertEquals(numbers(1, 3), numbersOf(flushed.poll(5, TimeUnit.SECONDS)));
+        assertNull(flushed.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    private SlackBatcher.Flusher flusher() {
+        return new SlackBatcher.Flusher() {
+            public void flush(List<Map<String, Object>> notifications) {
+                flushed.add(notifications);
+            }
+        };
+    }
+
+    private static String uniqueKey() {
+        return "https://hooks.slack.com/services/T" + KEYS.incrementAndGet() + " #rundeck form";
+    }
+
+    private static Map<String, Object> notification(int number) {
+        Map<String, Object> notification = new HashMap<String, Object>();
+        notification.put("number", number);
+        return notification;
+    }
+
+    private static List<Integer> numbers(int... numbers) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int number : numbers) {
+            list.add(number);
+        }
+        return list;
+    }
+
+    private static List<Integer> numbersOf(List<Map<String, Object>> notifications) {
+        if (notifications == null) {
+            return Collections.emptyList();
+        }
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (Map<String, Object> notification : notifications) {
+            numbers.add((Integer) notification.get("number"));
+        }
+        return numbers;
+    }
+}
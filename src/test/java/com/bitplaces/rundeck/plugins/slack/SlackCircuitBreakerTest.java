@@ -0,0 +1,129 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SlackCircuitBreakerTest {
+
+    private static final AtomicInteger WEBHOOKS = new AtomicInteger();
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        String webhookUrl = uniqueWebhookUrl();
+        SlackCircuitBreaker breaker = SlackCircuitBreaker.forWebhook(webhookUrl, 3, 60000);
+
+        failAttempts(breaker, 2);
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.recordSuccess();
+        failAttempts(breaker, 2);
+        assertEquals(SlackCircuitBreaker.State.CLOSED, breaker.state());
+
+        failAttempts(breaker, 1);
+
+        assertEquals(SlackCircuitBreaker.State.OPEN, SlackCircuitBreaker.stateOf(webhookUrl));
+        assertFalse(breaker.tryAcquirePermission());
+        assertFalse(breaker.tryAcquirePermission());
+        assertEquals(2, breaker.rejectedCount());
+        assertTrue(breaker.remainingOpenMillis() > 59000);
+    }
+
+    @Test
+    public void closesWhenProbeSucceeds() throws InterruptedException {
+        SlackCircuitBreaker breaker = openBreaker(50);
+        Thread.sleep(60);
+
+        assertTrue(breaker.tryAcquirePermission());
+        assertEquals(SlackCircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertFalse(breaker.tryAcquirePermission());
+        breaker.recordSuccess();
+
+        assertEquals(SlackCircuitBreaker.State.CLOSED, breaker.state());
+        assertEquals(0, breaker.remainingOpenMillis());
+        assertTrue(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void reopensWhenProbeFails() throws InterruptedException {
+        SlackCircuitBreaker breaker = openBreaker(50);
+        Thread.sleep(60);
+
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.recordFailure();
+
+        assertEquals(SlackCircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void letsNextMessageProbeWhenProbeWasNotSent() throws InterruptedException {
+        SlackCircuitBreaker breaker = openBreaker(50);
+        Thread.sleep(60);
+        assertTrue(breaker.tryAcquirePermission());
+
+        breaker.recordNotSent();
+
+        assertTrue(breaker.tryAcquirePermission());
+        assertEquals(SlackCircuitBreaker.State.HALF_OPEN, breaker.state());
+    }
+
+    @Test
+    public void firstSettingsOfWebhookWin() {
+        String webhookUrl = uniqueWebhookUrl();
+        SlackCircuitBreaker breaker = SlackCircuitBreaker.forWebhook(webhookUrl, 2, 60000);
+
+        SlackCircuitBreaker reconfigured = SlackCircuitBreaker.forWebhook(webhookUrl, 5, 50);
+        failAttempts(reconfigured, 2);
+
+        assertSame(breaker, reconfigured);
+        assertEquals(SlackCircuitBreaker.State.OPEN, breaker.state());
+        assertTrue(breaker.remainingOpenMillis() > 59000);
+    }
+
+    @Test
+    public void reportsUnusedWebhookAsClosed() {
+        assertEquals(SlackCircuitBreaker.State.CLOSED, SlackCircuitBreaker.stateOf(uniqueWebhookUrl()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveThreshold() {
+        SlackCircuitBreaker.forWebhook(uniqueWebhookUrl(), 0, 1000);
+    }
+
+    private static SlackCircuitBreaker openBreaker(long openMillis) {
+        SlackCircuitBreaker breaker = SlackCircuitBreaker.forWebhook(uniqueWebhookUrl(), 1, openMillis);
+        failAttempts(breaker, 1);
+        assertEquals(SlackCircuitBreaker.State.OPEN, breaker.state());
+        return breaker;
+    }
+
+    private static void failAttempts(SlackCircuitBreaker breaker, int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+            breaker.recordFailure();
+        }
+    }
+
+    private static String uniqueWebhookUrl() {
+        return "https://hooks.slack.com/services/T000/B000/breaker" + WEBHOOKS.incrementAndGet();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SlackDedupeCacheTest {
+
+    private static final AtomicInteger SCOPES = new AtomicInteger();
+
+    private final BlockingQueue<Object[]> reports = new LinkedBlockingQueue<Object[]>();
+
+    @Test
+    public void suppressesIdenticalFailuresWithinWindow() {
+        String scope = uniqueScope();
+
+        assertTrue(shouldSend(scope, SlackTrigger.FAILURE, execution(1, "web1, web2"), 60000));
+        assertFalse(shouldSend(scope, SlackTrigger.FAILURE, execution(2, "web2,web1"), 60000));
+        assertTrue(shouldSend(scope, SlackTrigger.FAILURE, execution(3, "web1"), 60000));
+        assertTrue(shouldSend(scope, SlackTrigger.ONRETRY, execution(4, "web1, web2"), 60000));
+        assertTrue(shouldSend(uniqueScope(), SlackTrigger.FAILURE, execution(5, "web1, web2"), 60000));
+    }
+
+    @Test
+    public void reportsRepeatsWhenNextWindowOpens() throws InterruptedException {
+        String scope = uniqueScope();
+        assertTrue(shouldSend(scope, SlackTrigger.FAILURE, execution(1, "web1"), 100));
+        assertFalse(shouldSend(scope, SlackTrigger.FAILURE, execution(2, "web1"), 100));
+        assertFalse(shouldSend(scope, SlackTrigger.FAILURE, execution(3, "web1"), 100));
+        Thread.sleep(150);
+
+        assertTrue(shouldSend(scope, SlackTrigger.FAILURE, execution(4, "web1"), 100));
+
+        Object[] report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(SlackTrigger.FAILURE, report[0]);
+        assertEquals(3L, ((Map<?, ?>) report[1]).get("id"));
+        assertEquals(2, report[2]);
+    }
+
+    @Test
+    public void doesNotReportWindowWithoutRepeats() throws InterruptedException {
+        String scope = uniqueScope();
+        assertTrue(shouldSend(scope, SlackTrigger.FAILURE, execution(1, "web1"), 50));
+        Thread.sleep(100);
+
+        assertTrue(shouldSend(scope, SlackTrigger.FAILURE, execution(2, "web1"), 50));
+
+        assertNull(reports.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reportsEvictedWindowRightAway() throws InterruptedException {
+        String scope = uniqueScope();
+        assertTrue(SlackDedupeCache.shouldSend(scope, SlackTrigger.FAILURE, execution(1, "web1"), 60000, 1, reporter()));
+        assertFalse(SlackDedupeCache.shouldSend(scope, SlackTrigger.FAILURE, execution(2, "web1"), 60000, 1, reporter()));
+
+        assertTrue(SlackDedupeCache.shouldSend(scope, SlackTrigger.FAILURE, execution(3, "db1"), 60000, 1, reporter()));
+
+        Object[] report = reports.poll(5, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertEquals(1, report[2]);
+    }
+
+    private boolean shouldSend(String scope, SlackTrigger trigger, Map<String, Object> executionData, long windowMillis) {
+        return SlackDedupeCache.shouldSend(scope, trigger, executionData, windowMillis, 10000, reporter());
+    }
+
+    private SlackDedupeCache.RepeatReporter reporter() {
+        return new SlackDedupeCache.RepeatReporter() {
+            public void reportRepeats(SlackTrigger trigger, Map executionData, int repeatCount) {
+                reports.add(new Object[]{trigger, executionData, repeatCount});
+            }
+        };
+    }
+
+    private static String uniqueScope() {
+        return "https://hooks.slack.com/services/T" + SCOPES.incrementAndGet() + " #rundeck";
+    }
+
+    private static Map<String, Object> execution(long id, String failedNodes) {
+        Map<String, Object> job = new HashMap<String, Object>();
+        job.put("id", "8f1c2c8e-3f5a-4c55-9d1c-5b7d2f3e6a10");
+        job.put("name", "nightly-database-backup");
+        Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("id", id);
+        executionData.put("project", "production");
+        executionData.put("job", job);
+        executionData.put("failedNodeListString", failedNodes);
+        return executionData;
+    }
+}
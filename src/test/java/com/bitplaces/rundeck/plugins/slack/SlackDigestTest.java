@@ -0,0 +1,109 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SlackDigestTest {
+
+    private static final AtomicInteger KEYS = new AtomicInteger();
+
+    private final BlockingQueue<Map<String, Object>> models = new LinkedBlockingQueue<Map<String, Object>>();
+    private final BlockingQueue<Set<SlackTrigger>> triggers = new LinkedBlockingQueue<Set<SlackTrigger>>();
+
+    @Test
+    public void countsOutcomesPerJobUntilWindowEnds() throws InterruptedException {
+        String key = uniqueKey();
+
+        SlackDigest.record(key, 200, false, SlackTrigger.SUCCESS, execution("backup"), flusher());
+        SlackDigest.record(key, 200, false, SlackTrigger.SUCCESS, execution("backup"), flusher());
+        SlackDigest.record(key, 200, false, SlackTrigger.START, execution("deploy"), flusher());
+
+        Map<String, Object> model = models.poll(5, TimeUnit.SECONDS);
+        assertNotNull(model);
+        assertEquals(EnumSet.of(SlackTrigger.SUCCESS, SlackTrigger.START), triggers.poll());
+        assertEquals(2, ((Map<?, ?>) model.get("totals")).get("success"));
+        assertEquals(1, ((Map<?, ?>) model.get("totals")).get("start"));
+        List<?> jobs = (List<?>) model.get("jobs");
+        assertEquals(2, jobs.size());
+        assertEquals("backup", ((Map<?, ?>) jobs.get(0)).get("name"));
+        assertEquals(2, ((Map<?, ?>) ((Map<?, ?>) jobs.get(0)).get("counts")).get("success"));
+        assertEquals(SlackTrigger.SUCCESS.color(), model.get("color"));
+    }
+
+    @Test
+    public void sendsRightAwayOnFailureWhenEnabled() throws InterruptedException {
+        String key = uniqueKey();
+
+        SlackDigest.record(key, TimeUnit.MINUTES.toMillis(10), true, SlackTrigger.SUCCESS, execution("backup"), flusher());
+        SlackDigest.record(key, TimeUnit.MINUTES.toMillis(10), true, SlackTrigger.FAILURE, execution("backup"), flusher());
+
+        Map<String, Object> model = models.poll(5, TimeUnit.SECONDS);
+        assertNotNull(model);
+        assertEquals(EnumSet.of(SlackTrigger.SUCCESS, SlackTrigger.FAILURE), triggers.poll());
+        assertEquals(SlackTrigger.FAILURE.color(), model.get("color"));
+
+        SlackDigest.record(key, 100, true, SlackTrigger.SUCCESS, execution("backup"), flusher());
+        assertEquals(EnumSet.of(SlackTrigger.SUCCESS), triggers.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepsCountingFailuresWhenNotFlushingOnFailure() throws InterruptedException {
+        String key = uniqueKey();
+
+        SlackDigest.record(key, 300, false, SlackTrigger.FAILURE, execution("backup"), flusher());
+
+        assertNull(models.poll(100, TimeUnit.MILLISECONDS));
+        assertNotNull(models.poll(5, TimeUnit.SECONDS));
+    }
+
+    private SlackDigest.Flusher flusher() {
+        return new SlackDigest.Flusher() {
+            public void flush(Map<String, Object> model, Set<SlackTrigger> counted) {
+                triggers.add(counted);
+                models.add(model);
+            }
+        };
+    }
+
+    private static String uniqueKey() {
+        return "https://hooks.slack.com/services/T" + KEYS.incrementAndGet() + " #rundeck form";
+    }
+
+    private static Map<String, Object> execution(String jobName) {
+        Map<String, Object> job = new HashMap<String, Object>();
+        job.put("id", jobName + "-id");
+        job.put("name", jobName);
+        job.put("group", "ops");
+        Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("project", "production");
+        executionData.put("job", job);
+        return executionData;
+    }
+}
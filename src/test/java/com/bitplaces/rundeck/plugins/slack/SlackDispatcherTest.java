@@ -0,0 +1,198 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SlackDispatcherTest {
+
+    /** starvation limits that never take effect, one per test so that every test gets a dispatcher of its own */
+    private static final AtomicInteger NO_STARVATION = new AtomicInteger(3600000);
+
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch workerBusy = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void servesMostUrgentLaneFirst() throws InterruptedException {
+        SlackDispatcher dispatcher = busyDispatcher(10, SlackDispatcher.OverflowPolicy.BLOCK, NO_STARVATION.incrementAndGet());
+        CountDownLatch done = new CountDownLatch(4);
+
+        dispatcher.submit(SlackTrigger.START, delivery("start", done));
+        dispatcher.submit(SlackTrigger.SUCCESS, delivery("success", done));
+        dispatcher.submit(SlackTrigger.FAILURE, delivery("failure", done));
+        dispatcher.submit(SlackTrigger.SUCCESS, delivery("success 2", done));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("failure", "success", "success 2", "start"), delivered);
+    }
+
+    @Test
+    public void servesStarvedDeliveryFirst() throws InterruptedException {
+        SlackDispatcher dispatcher = busyDispatcher(10, SlackDispatcher.OverflowPolicy.BLOCK, 50);
+        CountDownLatch done = new CountDownLatch(2);
+
+        dispatcher.submit(SlackTrigger.SUCCESS, delivery("success", done));
+        Thread.sleep(100);
+        dispatcher.submit(SlackTrigger.FAILURE, delivery("failure", done));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("success", "failure"), delivered);
+        assertTrue(dispatcher.getStarvationPromotedCount() >= 1);
+    }
+
+    @Test
+    public void evictsLessUrgentDeliveryWhenFull() throws InterruptedException {
+        SlackDispatcher dispatcher = busyDispatcher(2, SlackDispatcher.OverflowPolicy.DROP_NEWEST, NO_STARVATION.incrementAndGet());
+        CountDownLatch done = new CountDownLatch(2);
+
+        assertTrue(dispatcher.submit(SlackTrigger.START, delivery("start", done)));
+        assertTrue(dispatcher.submit(SlackTrigger.FAILURE, delivery("failure", done)));
+        assertTrue(dispatcher.submit(SlackTrigger.ONRETRY, delivery("onretry", done)));
+        assertFalse(dispatcher.submit(SlackTrigger.SUCCESS, delivery("success", done)));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("failure", "onretry"), delivered);
+        assertEquals(Collections.singletonList("start"), discarded);
+        assertEquals(2, dispatcher.getDroppedCount());
+        assertEquals(Long.valueOf(1), dispatcher.getLaneDroppedCounts().get("start"));
+        assertEquals(Long.valueOf(1), dispatcher.getLaneDroppedCounts().get("success"));
+    }
+
+    @Test
+    public void dropsOldestOfSameLane() throws InterruptedException {
+        SlackDispatcher dispatcher = busyDispatcher(2, SlackDispatcher.OverflowPolicy.DROP_OLDEST, NO_STARVATION.incrementAndGet());
+        CountDownLatch done = new CountDownLatch(2);
+
+        dispatcher.submit(SlackTrigger.FAILURE, delivery("failure 1", done));
+        dispatcher.submit(SlackTrigger.FAILURE, delivery("failure 2", done));
+        assertTrue(dispatcher.submit(SlackTrigger.FAILURE, delivery("failure 3", done)));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("failure 2", "failure 3"), delivered);
+        assertEquals(Collections.singletonList("failure 1"), discarded);
+    }
+
+    @Test
+    public void throwsWhenInterruptedWaitingForRoom() throws InterruptedException {
+        SlackDispatcher dispatcher = busyDispatcher(1, SlackDispatcher.OverflowPolicy.BLOCK, NO_STARVATION.incrementAndGet());
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.submit(SlackTrigger.SUCCESS, delivery("success", done));
+
+        Thread.currentThread().interrupt();
+        try {
+            dispatcher.submit(SlackTrigger.FAILURE, delivery("failure", done));
+            fail("expected the interrupted submit to throw");
+        } catch (InterruptedException interruptedEx) {
+            // the delivery was not queued
+        }
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("success"), delivered);
+        assertTrue(discarded.isEmpty());
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void sendsAtMostWorkersDeliveriesAtOnce() throws InterruptedException {
+        SlackDispatcher dispatcher = SlackDispatcher.forSettings(10, 2, SlackDispatcher.OverflowPolicy.BLOCK, NO_STARVATION.incrementAndGet());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(6);
+
+        for (int i = 0; i < 6; i++) {
+            dispatcher.submit(SlackTrigger.SUCCESS, new SlackDispatcher.Delivery() {
+                public void run() {
+                    int current = inFlight.incrementAndGet();
+                    while (true) {
+                        int max = maxInFlight.get();
+                        if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                            break;
+                        }
+                    }
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException interruptedEx) {
+                        Thread.currentThread().interrupt();
+                    }
+                    inFlight.decrementAndGet();
+                    done.countDown();
+                }
+
+                public void discarded() {
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, maxInFlight.get());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    /**
+     * Returns a dispatcher with a single worker, busy until {@link #release} is counted down.
+     */
+    private SlackDispatcher busyDispatcher(int capacity, SlackDispatcher.OverflowPolicy policy, long starvationMillis)
+            throws InterruptedException {
+        SlackDispatcher dispatcher = SlackDispatcher.forSettings(capacity, 1, policy, starvationMillis);
+        dispatcher.submit(SlackTrigger.FAILURE, new SlackDispatcher.Delivery() {
+            public void run() {
+                workerBusy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void discarded() {
+            }
+        });
+        assertTrue(workerBusy.await(5, TimeUnit.SECONDS));
+        return dispatcher;
+    }
+
+    private SlackDispatcher.Delivery delivery(final String name, final CountDownLatch done) {
+        return new SlackDispatcher.Delivery() {
+            public void run() {
+                delivered.add(name);
+                done.countDown();
+            }
+
+            public void discarded() {
+                discarded.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SlackFanOutTest {
+
+    private static final String BASE_URL = "https://hooks.slack.com/services";
+
+    @Test
+    public void parsesTokensWithOptionalChannels() {
+        List<SlackFanOut.Destination> destinations = SlackFanOut.parse(BASE_URL, " T1/B1/X1 #ops-alerts,\nT2/B2/X2 , ,");
+
+        assertEquals(2, destinations.size());
+        assertEquals(BASE_URL + "/T1/B1/X1", destinations.get(0).webhookUrl());
+        assertEquals("#ops-alerts", destinations.get(0).channel());
+        assertEquals(BASE_URL + "/T2/B2/X2", destinations.get(1).webhookUrl());
+        assertNull(destinations.get(1).channel());
+        assertTrue(SlackFanOut.parse(BASE_URL, null).isEmpty());
+        assertTrue(SlackFanOut.parse(BASE_URL, "  ").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDestinationWithExtraWords() {
+        SlackFanOut.parse(BASE_URL, "T1/B1/X1 #ops alerts");
+    }
+
+    @Test
+    public void sendsToDestinationsConcurrently() throws InterruptedException {
+        final CountDownLatch allStarted = new CountDownLatch(3);
+        List<Callable<Boolean>> sends = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < 3; i++) {
+            sends.add(new Callable<Boolean>() {
+                public Boolean call() throws InterruptedException {
+                    allStarted.countDown();
+                    // only succeeds if the other sends run at the same time
+                    return allStarted.await(5, TimeUnit.SECONDS);
+                }
+            });
+        }
+
+        assertTrue(SlackFanOut.sendAll(sends, 0));
+    }
+
+    @Test
+    public void returnsOnceQuorumSucceeded() {
+        final CountDownLatch release = new CountDownLatch(1);
+        List<Callable<Boolean>> sends = new ArrayList<Callable<Boolean>>();
+        sends.add(result(true));
+        sends.add(result(false));
+        sends.add(new Callable<Boolean>() {
+            public Boolean call() throws InterruptedException {
+                return release.await(5, TimeUnit.SECONDS);
+            }
+        });
+
+        try {
+            assertTrue(SlackFanOut.sendAll(sends, 1));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void failsOnceQuorumCannotBeReached() {
+        List<Callable<Boolean>> sends = new ArrayList<Callable<Boolean>>();
+        sends.add(result(true));
+        sends.add(failure("channel_not_found"));
+        sends.add(result(false));
+
+        try {
+            SlackFanOut.sendAll(sends, 2);
+            fail("quorum of 2 cannot be reached with 2 failed destinations");
+        } catch (SlackNotificationPluginException quorumEx) {
+            assertTrue(quorumEx.getMessage(), quorumEx.getMessage().startsWith("2 of 3 Slack destinations failed, 2 had to succeed"));
+            assertTrue(quorumEx.getMessage(), quorumEx.getMessage().contains("channel_not_found"));
+        }
+    }
+
+    @Test
+    public void requiresAllDestinationsWhenQuorumIsZeroOrTooLarge() {
+        List<Callable<Boolean>> sends = new ArrayList<Callable<Boolean>>();
+        sends.add(result(true));
+        sends.add(failure("invalid_token"));
+
+        for (int quorum : new int[]{0, 3}) {
+            try {
+                SlackFanOut.sendAll(sends, quorum);
+                fail("every destination has to succeed with a quorum of " + quorum);
+            } catch (SlackNotificationPluginException quorumEx) {
+                assertTrue(quorumEx.getMessage(), quorumEx.getMessage().contains("2 had to succeed"));
+            }
+        }
+    }
+
+    private static Callable<Boolean> result(final boolean result) {
+        return new Callable<Boolean>() {
+            public Boolean call() {
+                return result;
+            }
+        };
+    }
+
+    private static Callable<Boolean> failure(final String message) {
+        return new Callable<Boolean>() {
+            public Boolean call() {
+                throw new SlackNotificationPluginException(message);
+            }
+        };
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlackHistogramTest {
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        SlackHistogram histogram = new SlackHistogram();
+
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+    }
+
+    @Test
+    public void keepsSmallValuesExact() {
+        SlackHistogram histogram = new SlackHistogram();
+        for (int value = 1; value <= 20; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(10, histogram.percentile(0.5));
+        assertEquals(20, histogram.percentile(1.0));
+        assertEquals(1, histogram.percentile(0.0));
+        assertEquals(210, histogram.sum());
+    }
+
+    @Test
+    public void keepsLargeValuesWithinBucketPrecision() {
+        SlackHistogram histogram = new SlackHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+
+        assertWithinPrecision(50000, histogram.percentile(0.5));
+        assertWithinPrecision(99000, histogram.percentile(0.99));
+        assertEquals(100000, histogram.percentile(1.0));
+        assertEquals(100000, histogram.max());
+    }
+
+    @Test
+    public void recordsNegativeValuesAsZeroAndHugeValues() {
+        SlackHistogram histogram = new SlackHistogram();
+
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.percentile(1.0));
+    }
+
+    @Test
+    public void countsRecordingsFromManyThreads() throws InterruptedException {
+        final SlackHistogram histogram = new SlackHistogram();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(80000, histogram.count());
+        assertEquals(9999, histogram.max());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, actual >= expected && actual <= expected * 1.07);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SlackHttpResponseTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void readsShortBody() throws IOException {
+        assertEquals("ok", SlackHttpResponse.readBody(new ByteArrayInputStream("ok".getBytes(UTF_8))));
+        assertEquals("", SlackHttpResponse.readBody(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    public void readsBodyLargerThanReusedBuffer() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("invalid_payload \u00e9\u5931 ");
+        }
+
+        assertEquals(body.toString(), SlackHttpResponse.readBody(new TrickleInputStream(body.toString().getBytes(UTF_8), 7)));
+        // the next response on the thread starts from an empty buffer
+        assertEquals("ok", SlackHttpResponse.readBody(new TrickleInputStream("ok".getBytes(UTF_8), 1)));
+    }
+
+    @Test
+    public void looksUpHeadersIgnoringCase() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("retry-after", "30");
+
+        SlackHttpResponse response = new SlackHttpResponse(429, headers, "rate_limited");
+
+        assertEquals("30", response.getHeader("Retry-After"));
+        assertNull(response.getHeader("Content-Type"));
+    }
+
+    /**
+     * Returns at most a few bytes per read, like a response arriving in several packets.
+     */
+    private static final class TrickleInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private final int chunkSize;
+        private int position;
+
+        TrickleInputStream(byte[] bytes, int chunkSize) {
+            this.bytes = bytes;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position == bytes.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, chunkSize), bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SlackMetricsTest {
+
+    private static final AtomicInteger WEBHOOKS = new AtomicInteger();
+
+    @Test
+    public void labelsWebhookWithoutItsSecret() {
+        String label = SlackMetrics.label("https://hooks.slack.com/services/T0001/B0001/s3cr3tT0k3n");
+
+        assertTrue(label, label.startsWith("hooks.slack.com/services/T0001/B0001/"));
+        assertFalse(label, label.contains("s3cr3tT0k3n"));
+        assertEquals(label.length(), "hooks.slack.com/services/T0001/B0001/".length() + 8);
+        assertEquals(label, SlackMetrics.label("https://hooks.slack.com/services/T0001/B0001/s3cr3tT0k3n"));
+        assertNotEquals(label, SlackMetrics.label("https://hooks.slack.com/services/T0001/B0001/other"));
+        assertTrue(SlackMetrics.label("http://localhost:8080/hook/secret").startsWith("localhost:8080/hook/"));
+    }
+
+    @Test
+    public void sharesMetricsOfWebhook() {
+        String webhookUrl = uniqueWebhookUrl();
+
+        assertSame(SlackMetrics.forWebhook(webhookUrl), SlackMetrics.forWebhook(webhookUrl));
+    }
+
+    @Test
+    public void countsOutcomesAndResponses() {
+        SlackMetrics metrics = SlackMetrics.forWebhook(uniqueWebhookUrl());
+
+        metrics.recordSent();
+        metrics.recordSent();
+        metrics.recordFailed();
+        metrics.recordResponse(200);
+        metrics.recordResponse(200);
+        metrics.recordResponse(429);
+        metrics.requestStarted();
+
+        assertEquals(2, metrics.getSentCount());
+        assertEquals(1, metrics.getFailedCount());
+        assertEquals(Long.valueOf(2), metrics.getResponseCodes().get("200"));
+        assertEquals(Long.valueOf(1), metrics.getResponseCodes().get("429"));
+        assertEquals(1, metrics.getInFlightRequests());
+
+        metrics.requestFinished(5000000);
+
+        assertEquals(0, metrics.getInFlightRequests());
+        assertEquals(5000, metrics.getHttpTimeMaxMicros());
+    }
+
+    @Test
+    public void boundsFailureReasons() {
+        SlackMetrics metrics = SlackMetrics.forWebhook(uniqueWebhookUrl());
+        StringBuilder longReason = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longReason.append('x');
+        }
+
+        metrics.recordFailedAttempt("");
+        metrics.recordFailedAttempt(longReason.toString());
+        for (int i = 0; i < 50; i++) {
+            metrics.recordFailedAttempt("reason_" + i);
+        }
+
+        assertEquals(Long.valueOf(1), metrics.getFailureReasons().get("empty_response"));
+        assertEquals(Long.valueOf(1), metrics.getFailureReasons().get(longReason.substring(0, 64)));
+        assertEquals(33, metrics.getFailureReasons().size());
+        assertEquals(Long.valueOf(20), metrics.getFailureReasons().get("other"));
+    }
+
+    private static String uniqueWebhookUrl() {
+        return "https://hooks.slack.com/services/T000/B000/metrics" + WEBHOOKS.incrementAndGet();
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Delivery of notifications to the webhook stub: sending, retries, the circuit breaker and connection reuse.
+ */
+public class SlackNotificationPluginTest {
+
+    private SlackWebhookStubServer stub;
+    private Map<String, String> properties;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = SlackWebhookStubServer.start();
+        properties = PluginFixtures.defaultProperties();
+        properties.put("webhook_base_url", stub.baseUrl());
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Test
+    public void sendsRenderedMessageToWebhook() {
+        assertTrue(post("failure"));
+
+        assertEquals(1, stub.requestCount());
+        SlackWebhookStubServer.Request request = stub.receivedRequests().get(0);
+        assertEquals("/services/" + properties.get("webhook_token"), request.path());
+        assertEquals("application/x-www-form-urlencoded", request.contentType());
+        assertTrue(request.body(), request.body().startsWith("payload="));
+        assertTrue(request.body(), request.body().contains("nightly-database-backup"));
+    }
+
+    @Test
+    public void sendsJsonPayload() {
+        properties.put("payload_format", "json");
+
+        assertTrue(post("success"));
+
+        SlackWebhookStubServer.Request request = stub.receivedRequests().get(0);
+        assertTrue(request.contentType(), request.contentType().startsWith("application/json"));
+        assertTrue(request.body(), request.body().contains("\"channel\":\"#rundeck\""));
+    }
+
+    @Test
+    public void retriesRateLimitedMessageAfterRetryAfter() throws InterruptedException {
+        properties.put("retry_max_attempts", "3");
+        stub.enqueueReplies(SlackWebhookStubServer.Reply.rateLimited(1));
+        long start = System.nanoTime();
+
+        assertTrue(post("failure"));
+
+        assertEquals(1, stub.requestCount());
+        assertTrue(stub.awaitRequestCount(2, 5000));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+        Thread.sleep(200);
+        assertEquals(2, stub.requestCount());
+    }
+
+    @Test
+    public void retriesServerErrorsUntilAccepted() throws InterruptedException {
+        properties.put("retry_max_attempts", "3");
+        stub.enqueueReplies(SlackWebhookStubServer.Reply.serverError(503).withRetryAfter(0),
+                SlackWebhookStubServer.Reply.serverError(502).withRetryAfter(0));
+
+        assertTrue(post("failure"));
+
+        assertTrue(stub.awaitRequestCount(3, 5000));
+        Thread.sleep(200);
+        assertEquals(3, stub.requestCount());
+    }
+
+    @Test
+    public void failsWithoutRetryWhenSlackRejectsPayload() {
+        properties.put("retry_max_attempts", "3");
+        stub.setDefaultReply(SlackWebhookStubServer.Reply.invalidPayload());
+
+        try {
+            post("failure");
+            fail("expected the rejected message to fail the notification");
+        } catch (SlackNotificationPluginException rejectedEx) {
+            assertEquals(SlackNotificationPluginException.FailureCategory.SLACK_RESPONSE, rejectedEx.getFailureCategory());
+        }
+        assertEquals(1, stub.requestCount());
+    }
+
+    @Test
+    public void failsWithoutRetryForMalformedWebhookUrl() throws IOException {
+        File spoolDir = File.createTempFile("slack-spool", "");
+        assertTrue(spoolDir.delete());
+        properties.put("spool_dir", spoolDir.getPath());
+        properties.put("webhook_base_url", "unknown-scheme://hooks.slack.com/services");
+        properties.put("retry_max_attempts", "3");
+        properties.put("circuit_breaker_threshold", "1");
+
+        try {
+            post("failure");
+            fail("expected the malformed URL to fail the notification");
+        } catch (SlackNotificationPluginException malformedEx) {
+            assertEquals(SlackNotificationPluginException.FailureCategory.OTHER, malformedEx.getFailureCategory());
+        }
+        assertEquals(Integer.valueOf(0), SlackSpool.backlogs().get(spoolDir.getAbsolutePath()));
+        assertEquals(SlackCircuitBreaker.State.CLOSED,
+                SlackCircuitBreaker.stateOf("unknown-scheme://hooks.slack.com/services/" + properties.get("webhook_token")));
+    }
+
+    @Test
+    public void opensCircuitAfterConsecutiveServerErrors() {
+        properties.put("circuit_breaker_threshold", "2");
+        stub.setDefaultReply(SlackWebhookStubServer.Reply.serverError(500));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                post("failure");
+                fail("expected the server error to fail the notification");
+            } catch (SlackNotificationPluginException serverErrorEx) {
+                assertEquals(SlackNotificationPluginException.FailureCategory.SLACK_RESPONSE, serverErrorEx.getFailureCategory());
+            }
+        }
+        try {
+            post("failure");
+            fail("expected the open circuit to fail the notification");
+        } catch (SlackNotificationPluginException circuitOpenEx) {
+            assertEquals(SlackNotificationPluginException.FailureCategory.CIRCUIT_OPEN, circuitOpenEx.getFailureCategory());
+        }
+        assertEquals(2, stub.requestCount());
+    }
+
+    @Test
+    public void failsInsteadOfWaitingLongForRateLimit() {
+        properties.put("rate_limit", "1");
+        properties.put("rate_limit_burst", "1");
+        properties.put("rate_limit_max_wait", "0");
+        assertTrue(post("success"));
+        long start = System.nanoTime();
+
+        try {
+            post("success");
+            fail("expected the rate limited message to fail the notification");
+        } catch (SlackNotificationPluginException rateLimitedEx) {
+            assertEquals(SlackNotificationPluginException.FailureCategory.RATE_LIMITED, rateLimitedEx.getFailureCategory());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertEquals(1, stub.requestCount());
+    }
+
+    @Test
+    public void retriesRateLimitedMessageOnceRateLimitAllows() throws InterruptedException {
+        properties.put("rate_limit", "2");
+        properties.put("rate_limit_burst", "1");
+        properties.put("rate_limit_max_wait", "0");
+        properties.put("retry_max_attempts", "2");
+        assertTrue(post("success"));
+
+        assertTrue(post("success"));
+
+        assertEquals(1, stub.requestCount());
+        assertTrue(stub.awaitRequestCount(2, 5000));
+    }
+
+    @Test
+    public void reusesKeepAliveConnection() {
+        properties.put("http_keep_alive", "true");
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(post("success"));
+        }
+
+        assertEquals(5, stub.requestCount());
+        assertEquals(1, stub.connectionCount());
+    }
+
+    @Test
+    public void reusesKeepAliveConnectionAfterErrorResponse() {
+        properties.put("http_keep_alive", "true");
+        properties.put("circuit_breaker_threshold", "0");
+        stub.enqueueReplies(SlackWebhookStubServer.Reply.serverError(500));
+
+        try {
+            post("success");
+            fail("expected the server error to fail the notification");
+        } catch (SlackNotificationPluginException serverErrorEx) {
+            // the error body was read, so the connection goes back to the keep-alive cache
+        }
+        assertTrue(post("success"));
+
+        assertEquals(1, stub.connectionCount());
+    }
+
+    @Test
+    public void opensNewConnectionPerMessageWithoutKeepAlive() {
+        properties.put("http_keep_alive", "false");
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(post("success"));
+        }
+
+        assertEquals(3, stub.connectionCount());
+    }
+
+    @Test
+    public void acknowledgesSpooledMessageDiscardedFromQueue() throws IOException, InterruptedException {
+        File spoolDir = File.createTempFile("slack-spool", "");
+        assertTrue(spoolDir.delete());
+        properties.put("spool_dir", spoolDir.getPath());
+        properties.put("async_dispatch", "true");
+        properties.put("async_queue_capacity", "1");
+        properties.put("async_workers", "1");
+        properties.put("async_overflow_policy", "drop-oldest");
+        stub.setDefaultReply(SlackWebhookStubServer.Reply.ok().delayedBy(300));
+
+        assertTrue(post("success"));
+        assertTrue(stub.awaitRequestCount(1, 5000));
+        // the first message is in flight, the third one evicts the second from the queue
+        assertTrue(post("success"));
+        assertTrue(post("success"));
+
+        assertTrue(stub.awaitRequestCount(2, 5000));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (SlackSpool.backlogs().get(spoolDir.getAbsolutePath()) > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Integer.valueOf(0), SlackSpool.backlogs().get(spoolDir.getAbsolutePath()));
+    }
+
+    @Test
+    public void keepsSpooledMessageWhenInterruptedWaitingForQueue() throws IOException, InterruptedException {
+        File spoolDir = File.createTempFile("slack-spool", "");
+        assertTrue(spoolDir.delete());
+        properties.put("spool_dir", spoolDir.getPath());
+        properties.put("async_dispatch", "true");
+        properties.put("async_queue_capacity", "1");
+        properties.put("async_workers", "1");
+        properties.put("async_overflow_policy", "block");
+        stub.setDefaultReply(SlackWebhookStubServer.Reply.ok().delayedBy(2000));
+
+        assertTrue(post("success"));
+        assertTrue(stub.awaitRequestCount(1, 5000));
+        assertTrue(post("success"));
+
+        Thread.currentThread().interrupt();
+        try {
+            post("success");
+            fail("expected the interrupted wait for the full queue to fail the notification");
+        } catch (SlackNotificationPluginException interruptedEx) {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(Integer.valueOf(3), SlackSpool.backlogs().get(spoolDir.getAbsolutePath()));
+    }
+
+    @Test
+    public void redeliversSpooledMessageAfterRetriesRanOut() throws IOException, InterruptedException {
+        File spoolDir = File.createTempFile("slack-spool", "");
+        assertTrue(spoolDir.delete());
+        properties.put("spool_dir", spoolDir.getPath());
+        properties.put("circuit_breaker_threshold", "0");
+        stub.enqueueReplies(SlackWebhookStubServer.Reply.serverError(500));
+
+        try {
+            post("failure");
+            fail("expected the server error to fail the notification");
+        } catch (SlackNotificationPluginException serverErrorEx) {
+            // retries ran out, the message goes back to the spool
+        }
+        assertEquals(Integer.valueOf(1), SlackSpool.backlogs().get(spoolDir.getAbsolutePath()));
+        assertTrue(post("success"));
+
+        assertTrue(stub.awaitRequestCount(3, 5000));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (SlackSpool.backlogs().get(spoolDir.getAbsolutePath()) > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Integer.valueOf(0), SlackSpool.backlogs().get(spoolDir.getAbsolutePath()));
+    }
+
+    @Test
+    public void sendsFullBatchesThroughDeliveryQueue() throws InterruptedException {
+        properties.put("batch_window", "60");
+        properties.put("batch_max_size", "2");
+        stub.setDefaultReply(SlackWebhookStubServer.Reply.ok().delayedBy(500));
+
+        for (String channel : new String[]{"#builds", "#deployments"}) {
+            properties.put("slack_channel", channel);
+            assertTrue(post("success"));
+            assertTrue(post("failure"));
+        }
+
+        assertTrue(stub.awaitRequestCount(2, 5000));
+        assertEquals(2, stub.maxConcurrentRequests());
+    }
+
+    @Test
+    public void recordsRenderTimeForEveryDestination() {
+        properties.put("webhook_token", "T0000/B0000/render-primary");
+        properties.put("additional_destinations", "T0000/B0000/render-extra #ops-alerts");
+
+        assertTrue(post("success"));
+
+        assertEquals(1, SlackMetrics.forWebhook(stub.baseUrl() + "/T0000/B0000/render-primary").renderTime().count());
+        assertEquals(1, SlackMetrics.forWebhook(stub.baseUrl() + "/T0000/B0000/render-extra").renderTime().count());
+    }
+
+    @Test
+    public void countsQueuedMessagesOfWebhook() throws InterruptedException {
+        properties.put("webhook_token", "T0000/B0000/queue-depth");
+        properties.put("async_dispatch", "true");
+        properties.put("async_workers", "1");
+        stub.setDefaultReply(SlackWebhookStubServer.Reply.ok().delayedBy(300));
+        SlackMetrics metrics = SlackMetrics.forWebhook(stub.baseUrl() + "/T0000/B0000/queue-depth");
+
+        assertTrue(post("success"));
+        assertTrue(stub.awaitRequestCount(1, 5000));
+        assertTrue(post("success"));
+        assertTrue(post("success"));
+
+        assertEquals(2, metrics.getQueueDepth());
+        assertTrue(stub.awaitRequestCount(3, 5000));
+        assertEquals(0, metrics.getQueueDepth());
+    }
+
+    @Test
+    public void copiesNestedExecutionData() {
+        Map<String, Object> executionData = PluginFixtures.executionData(3, 1);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> job = (Map<String, Object>) executionData.get("job");
+
+        Map<String, Object> copy = SlackNotificationPlugin.copyOf(executionData);
+        executionData.put("id", "changed");
+        job.put("name", "changed");
+
+        assertEquals(482213L, copy.get("id"));
+        assertEquals("nightly-database-backup", ((Map<?, ?>) copy.get("job")).get("name"));
+    }
+
+    private boolean post(String trigger) {
+        SlackNotificationPlugin plugin = PluginFixtures.configure(new SlackNotificationPlugin(), properties);
+        return plugin.postNotification(trigger, PluginFixtures.executionData(3, 1), new HashMap<String, Object>());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SlackPayloadTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String MESSAGE = "{\"text\":\"Job *nightly backup* failed on db-1 & db-2: 100% of \\\"nodes\\\" ~ "
+            + "Gr\u00fc\u00dfe, \u5931\u8d25 \uD83D\uDD25\",\"username\":\"Rundeck\"}";
+
+    @Test
+    public void encodesFormBodyLikeUrlEncoder() throws UnsupportedEncodingException {
+        SlackPayload payload = SlackPayload.encode(MESSAGE, SlackPayload.Format.FORM);
+
+        assertEquals("payload=" + URLEncoder.encode(MESSAGE, "UTF-8"), bodyOf(payload));
+        assertEquals("application/x-www-form-urlencoded", payload.contentType());
+        assertEquals(MESSAGE, SlackPayload.fromBody(SlackPayload.Format.FORM, body(payload)).message());
+    }
+
+    @Test
+    public void encodesJsonBodyAsUtf8() {
+        SlackPayload payload = SlackPayload.encode(MESSAGE, SlackPayload.Format.JSON);
+
+        assertArrayEquals(MESSAGE.getBytes(UTF_8), body(payload));
+        assertEquals(MESSAGE, SlackPayload.fromBody(SlackPayload.Format.JSON, body(payload)).message());
+    }
+
+    @Test
+    public void rendersThroughWriterInPieces() {
+        SlackPayload.PayloadWriter writer = SlackPayload.writer(SlackPayload.Format.FORM);
+        SlackPayload payload;
+        try {
+            // splits the surrogate pair of the emoji between two writes
+            int split = MESSAGE.indexOf('\uD83D') + 1;
+            writer.write(MESSAGE, 0, split);
+            writer.write(MESSAGE.toCharArray(), split, MESSAGE.length() - split);
+            payload = writer.toPayload();
+        } finally {
+            writer.close();
+        }
+
+        assertArrayEquals(body(SlackPayload.encode(MESSAGE, SlackPayload.Format.FORM)), body(payload));
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() {
+        assertEquals("{\"text\":\"a?b?\"}",
+                new String(body(SlackPayload.encode("{\"text\":\"a\uDD25b\uD83D\"}", SlackPayload.Format.JSON)), UTF_8));
+    }
+
+    @Test
+    public void addsChannelToJsonBody() {
+        SlackPayload payload = SlackPayload.encode("  {\"text\":\"done\"}", SlackPayload.Format.JSON);
+
+        assertEquals("  {\"channel\":\"#ops \\\"eu\\\"\",\"text\":\"done\"}", payload.withChannel("#ops \"eu\"").message());
+        assertEquals("{\"channel\":\"#ops\"}",
+                SlackPayload.encode("{ }", SlackPayload.Format.JSON).withChannel("#ops").message().replace(" ", ""));
+        assertEquals("{\"text\":\"done\"}", new String(body(payload), UTF_8).trim());
+    }
+
+    @Test
+    public void addsChannelToFormBody() throws UnsupportedEncodingException {
+        SlackPayload payload = SlackPayload.encode("{\"text\":\"Gr\u00fc\u00dfe\"}", SlackPayload.Format.FORM).withChannel("#ops");
+
+        String expected = "{\"channel\":\"#ops\",\"text\":\"Gr\u00fc\u00dfe\"}";
+        assertEquals(expected, payload.message());
+        assertEquals("payload=" + URLEncoder.encode(expected, "UTF-8"), bodyOf(payload));
+    }
+
+    @Test
+    public void keepsPayloadWhenWriterIsReused() {
+        SlackPayload first = SlackPayload.encode("{\"text\":\"first\"}", SlackPayload.Format.JSON);
+        byte[] firstBody = body(first);
+
+        SlackPayload.encode("{\"text\":\"second message, longer than the first\"}", SlackPayload.Format.JSON);
+
+        assertArrayEquals(firstBody, body(first));
+        assertEquals("{\"text\":\"first\"}", new String(body(first), UTF_8));
+    }
+
+    @Test
+    public void givesNestedRenderingAWriterOfItsOwn() {
+        SlackPayload.PayloadWriter outer = SlackPayload.writer(SlackPayload.Format.JSON);
+        try {
+            outer.write("{\"text\":", 0, 8);
+            SlackPayload inner = SlackPayload.encode("{\"text\":\"inner\"}", SlackPayload.Format.JSON);
+            outer.write("\"outer\"}", 0, 8);
+
+            assertEquals("{\"text\":\"inner\"}", new String(body(inner), UTF_8));
+            assertEquals("{\"text\":\"outer\"}", new String(body(outer.toPayload()), UTF_8));
+        } finally {
+            outer.close();
+        }
+    }
+
+    @Test
+    public void encodesSmallMessageAfterLargeOne() {
+        StringBuilder large = new StringBuilder("{\"text\":\"");
+        for (int i = 0; i < 100000; i++) {
+            large.append("node-").append(i).append(' ');
+        }
+        large.append("\"}");
+
+        assertEquals(large.toString(), new String(body(SlackPayload.encode(large.toString(), SlackPayload.Format.JSON)), UTF_8));
+        assertEquals("{}", new String(body(SlackPayload.encode("{}", SlackPayload.Format.JSON)), UTF_8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsChannelForNonObjectMessage() {
+        SlackPayload.encode("[1, 2]", SlackPayload.Format.JSON).withChannel("#ops");
+    }
+
+    private static byte[] body(SlackPayload payload) {
+        return Arrays.copyOf(payload.body(), payload.length());
+    }
+
+    private static String bodyOf(SlackPayload payload) {
+        return new String(body(payload), Charset.forName("US-ASCII"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlackPrometheusExporterTest {
+
+    private static final Pattern SAMPLE = Pattern.compile(
+            "[a-z_]+\\{([a-z_]+=\"([^\"\\\\]|\\\\.)*\")(,[a-z_]+=\"([^\"\\\\]|\\\\.)*\")*\\} -?[0-9.E-]+");
+
+    @Test
+    public void writesWebhookCountersAndLatency() throws IOException {
+        SlackMetrics metrics = SlackMetrics.forWebhook("https://hooks.slack.com/services/T000/B000/exporter");
+        metrics.recordSent();
+        metrics.recordFailedAttempt("invalid_payload");
+        metrics.requestStarted();
+        metrics.requestFinished(TimeUnit.MILLISECONDS.toNanos(250));
+
+        String text = export();
+
+        String label = "webhook=\"" + metrics.getWebhook() + "\"";
+        assertTrue(text, text.contains("slack_notifications_sent_total{" + label + "} 1\n"));
+        assertTrue(text, text.contains("slack_notification_failed_attempts_total{" + label + ",response=\"invalid_payload\"} 1\n"));
+        assertTrue(text, text.contains("slack_notification_send_latency_seconds{" + label + ",quantile=\"0.5\"} 0.25"));
+        assertTrue(text, text.contains("slack_notification_send_latency_seconds_count{" + label + "} 1\n"));
+        assertTrue(text, text.contains("slack_notification_circuit_open{" + label + "} 0\n"));
+    }
+
+    @Test
+    public void writesValidTextFormat() throws IOException {
+        SlackMetrics.forWebhook("https://hooks.slack.com/services/T000/B000/format").recordSent();
+        SlackDispatcher.forSettings(10, 1, SlackDispatcher.OverflowPolicy.BLOCK, 0);
+
+        Set<String> described = new HashSet<String>();
+        for (String line : export().split("\n")) {
+            if (line.startsWith("# HELP ")) {
+                assertTrue(line, described.add(line.split(" ")[2]));
+            } else if (!line.startsWith("# TYPE ")) {
+                assertTrue(line, SAMPLE.matcher(line).matches());
+                String name = line.substring(0, line.indexOf('{'));
+                assertTrue(line, described.contains(name) || described.contains(name.replaceAll("_(sum|count)$", "")));
+            }
+        }
+        assertTrue(described.contains("slack_notification_queue_lane_depth"));
+    }
+
+    @Test
+    public void replacesFileAtomically() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("slack-metrics").toFile();
+        File file = new File(directory, "slack.prom");
+
+        SlackPrometheusExporter.forFile(file, 60);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!file.exists() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        String text = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+        assertTrue(text, text.startsWith("# HELP slack_notifications_sent_total "));
+        assertEquals(1, directory.list().length);
+        assertFalse(new File(directory, ".slack.prom.tmp").exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveInterval() {
+        SlackPrometheusExporter.forFile(new File("slack.prom"), 0);
+    }
+
+    private static String export() throws IOException {
+        StringWriter out = new StringWriter();
+        SlackPrometheusExporter.writeMetrics(out);
+        return out.toString();
+    }
+}
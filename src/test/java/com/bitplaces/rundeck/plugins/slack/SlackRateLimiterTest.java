@@ -0,0 +1,77 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SlackRateLimiterTest {
+
+    private static final AtomicInteger WEBHOOKS = new AtomicInteger();
+
+    @Test
+    public void allowsBurstThenSpacesOutMessages() throws InterruptedException {
+        SlackRateLimiter limiter = SlackRateLimiter.forWebhook(webhookUrl(), 10, 2);
+
+        assertTrue(limiter.tryAcquire(0));
+        assertTrue(limiter.tryAcquire(0));
+        assertFalse(limiter.tryAcquire(0));
+
+        long waitNanos = limiter.waitNanos();
+        assertTrue(waitNanos > 0 && waitNanos <= TimeUnit.MILLISECONDS.toNanos(100));
+        long start = System.nanoTime();
+        assertTrue(limiter.tryAcquire(TimeUnit.SECONDS.toNanos(1)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void failedAttemptDoesNotTakeToken() throws InterruptedException {
+        SlackRateLimiter limiter = SlackRateLimiter.forWebhook(webhookUrl(), 1, 1);
+        assertTrue(limiter.tryAcquire(0));
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse(limiter.tryAcquire(TimeUnit.MILLISECONDS.toNanos(10)));
+        }
+
+        assertTrue(limiter.waitNanos() <= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void firstSettingsOfWebhookWin() {
+        String webhookUrl = webhookUrl();
+        SlackRateLimiter limiter = SlackRateLimiter.forWebhook(webhookUrl, 1, 1);
+
+        SlackRateLimiter sameLimiter = SlackRateLimiter.forWebhook(webhookUrl, 50, 10);
+
+        assertSame(limiter, sameLimiter);
+        assertEquals(1.0, sameLimiter.permitsPerSecond(), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroBurst() {
+        SlackRateLimiter.forWebhook(webhookUrl(), 1, 0);
+    }
+
+    private static String webhookUrl() {
+        return "https://hooks.slack.com/services/rate-limiter-test/" + WEBHOOKS.incrementAndGet();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlackRetryPolicyTest {
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        SlackRetryPolicy policy = new SlackRetryPolicy(20, TimeUnit.DAYS.toMillis(1));
+
+        for (int i = 0; i < 100; i++) {
+            long first = policy.nextDelayMillis(1, 0, -1);
+            assertTrue(first >= 0 && first <= SlackRetryPolicy.INITIAL_BACKOFF_MILLIS);
+            long third = policy.nextDelayMillis(3, 0, -1);
+            assertTrue(third >= 0 && third <= 4 * SlackRetryPolicy.INITIAL_BACKOFF_MILLIS);
+            long late = policy.nextDelayMillis(19, 0, -1);
+            assertTrue(late >= 0 && late <= SlackRetryPolicy.MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    @Test
+    public void usesDelayRequestedBySlack() {
+        SlackRetryPolicy policy = new SlackRetryPolicy(3, 60000);
+
+        assertEquals(5000, policy.nextDelayMillis(1, 0, 5000));
+    }
+
+    @Test
+    public void stopsAfterMaxAttemptsOrDeadline() {
+        SlackRetryPolicy policy = new SlackRetryPolicy(3, 10000);
+
+        assertEquals(-1, policy.nextDelayMillis(3, 0, 0));
+        assertEquals(-1, policy.nextDelayMillis(1, 8000, 5000));
+        assertEquals(2000, policy.nextDelayMillis(1, 8000, 2000));
+    }
+
+    @Test
+    public void retriesRateLimitAndServerErrorsOnly() {
+        assertTrue(SlackRetryPolicy.isRetryableStatus(429));
+        assertTrue(SlackRetryPolicy.isRetryableStatus(503));
+        assertFalse(SlackRetryPolicy.isRetryableStatus(400));
+        assertFalse(SlackRetryPolicy.isRetryableStatus(404));
+    }
+
+    @Test
+    public void parsesRetryAfterSecondsAndHttpDate() {
+        assertEquals(30000, SlackRetryPolicy.parseRetryAfter(" 30 "));
+        assertEquals(-1, SlackRetryPolicy.parseRetryAfter(null));
+        assertEquals(-1, SlackRetryPolicy.parseRetryAfter("soon"));
+
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long delay = SlackRetryPolicy.parseRetryAfter(httpDate.format(new Date(System.currentTimeMillis() + 120000)));
+        assertTrue(String.valueOf(delay), delay > 110000 && delay <= 120000);
+        assertEquals(0, SlackRetryPolicy.parseRetryAfter(httpDate.format(new Date(System.currentTimeMillis() - 60000))));
+    }
+
+    @Test
+    public void slowRetriesDoNotDelayOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            SlackRetryPolicy.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException interruptedEx) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, 0);
+        }
+        final CountDownLatch quickRetry = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        SlackRetryPolicy.schedule(new Runnable() {
+            public void run() {
+                quickRetry.countDown();
+            }
+        }, 50);
+
+        try {
+            assertTrue(quickRetry.await(2, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SlackRouterTest {
+
+    private static final String RULES = "trigger=failure group=ops/* -> #ops-alerts\n"
+            + "trigger=start -> drop\n"
+            + "project=billing job=invoice-run -> T0000/B0000/XXXX #billing\n"
+            + "group=ops/backup -> #backups\n"
+            + "project=billing -> T1111/B1111/YYYY\n";
+
+    @Test
+    public void routesByFirstMatchingRule() {
+        SlackRouter router = SlackRouter.forRules(RULES);
+
+        assertEquals("#ops-alerts", router.route(SlackTrigger.FAILURE, execution("production", "ops/backup", "nightly")).channel());
+        assertEquals("#backups", router.route(SlackTrigger.SUCCESS, execution("production", "ops/backup", "nightly")).channel());
+        assertTrue(router.route(SlackTrigger.START, execution("production", "ops/backup", "nightly")).isDrop());
+
+        SlackRouter.Route invoices = router.route(SlackTrigger.SUCCESS, execution("billing", "finance", "invoice-run"));
+        assertEquals("T0000/B0000/XXXX", invoices.webhookToken());
+        assertEquals("#billing", invoices.channel());
+        assertFalse(invoices.isDrop());
+
+        SlackRouter.Route billing = router.route(SlackTrigger.SUCCESS, execution("billing", "finance", "reconcile"));
+        assertEquals("T1111/B1111/YYYY", billing.webhookToken());
+        assertNull(billing.channel());
+    }
+
+    @Test
+    public void matchesGroupSubtreeAndExactGroup() {
+        SlackRouter router = SlackRouter.forRules(RULES);
+
+        assertEquals("#ops-alerts", router.route(SlackTrigger.FAILURE, execution("production", "ops", "cleanup")).channel());
+        assertEquals("#ops-alerts", router.route(SlackTrigger.FAILURE, execution("production", "ops/db/replicas", "check")).channel());
+        assertNull(router.route(SlackTrigger.SUCCESS, execution("production", "ops/backup/weekly", "full")));
+        assertNull(router.route(SlackTrigger.FAILURE, execution("production", "operations", "cleanup")));
+    }
+
+    @Test
+    public void prefersEarlierRuleOverMoreSpecificOne() {
+        SlackRouter router = SlackRouter.forRules("* -> #everything\ntrigger=failure group=ops -> #ops");
+
+        assertEquals("#everything", router.route(SlackTrigger.FAILURE, execution("production", "ops", "cleanup")).channel());
+    }
+
+    @Test
+    public void routesExecutionsWithoutJob() {
+        SlackRouter router = SlackRouter.forRules("project=adhoc -> @oncall\n* -> #rundeck");
+        Map<String, Object> adhoc = new HashMap<String, Object>();
+        adhoc.put("project", "adhoc");
+
+        assertEquals("@oncall", router.route(SlackTrigger.FAILURE, adhoc).channel());
+        assertEquals("#rundeck", router.route(SlackTrigger.FAILURE, new HashMap<String, Object>()).channel());
+    }
+
+    @Test
+    public void reusesCompiledRules() {
+        assertSame(SlackRouter.forRules(RULES), SlackRouter.forRules(RULES));
+    }
+
+    @Test
+    public void rejectsInvalidRules() {
+        for (String rule : new String[]{"trigger=failure #ops", "trigger=crash -> #ops", "node=web1 -> #ops",
+                "trigger -> #ops", "* -> T0000/B0000/XXXX #ops extra", "* -> "}) {
+            try {
+                SlackRouter.forRules(rule);
+                fail("rule should be rejected: " + rule);
+            } catch (IllegalArgumentException invalidEx) {
+                assertTrue(invalidEx.getMessage(), invalidEx.getMessage().contains(rule.trim()));
+            }
+        }
+    }
+
+    private static Map<String, Object> execution(String project, String group, String jobName) {
+        Map<String, Object> job = new HashMap<String, Object>();
+        job.put("project", project);
+        job.put("group", group);
+        job.put("name", jobName);
+        Map<String, Object> executionData = new HashMap<String, Object>();
+        executionData.put("project", project);
+        executionData.put("job", job);
+        return executionData;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlackSpoolTest {
+
+    private static final String WEBHOOK_URL = "https://hooks.slack.com/services/T000/B000/XXXX";
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int MAX_MESSAGES = 1000;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("slack-spool", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void rotatesWithUnacknowledgedBacklog() {
+        SlackSpool spool = SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES);
+
+        for (int i = 0; i < 200; i++) {
+            spool.append(WEBHOOK_URL, message(i));
+        }
+
+        assertEquals(200, spool.backlog());
+        assertTrue(segmentFiles().length <= 3);
+        assertMessages(SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES).takeRecovered(), 0, 200, 1);
+    }
+
+    @Test
+    public void recoversOnlyUnacknowledgedMessages() {
+        SlackSpool spool = SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES);
+        List<SlackSpool.Entry> entries = new ArrayList<SlackSpool.Entry>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(spool.append(WEBHOOK_URL, message(i)));
+        }
+
+        for (int i = 0; i < entries.size(); i += 2) {
+            entries.get(i).acknowledge();
+        }
+
+        assertEquals(50, spool.backlog());
+        assertMessages(SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES).takeRecovered(), 1, 100, 2);
+    }
+
+    @Test
+    public void deletesAcknowledgedSegments() {
+        SlackSpool spool = SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES);
+
+        for (int i = 0; i < 100; i++) {
+            spool.append(WEBHOOK_URL, message(i)).acknowledge();
+        }
+
+        assertEquals(0, spool.backlog());
+        assertTrue(segmentFiles().length <= 2);
+        assertTrue(SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES).takeRecovered().isEmpty());
+    }
+
+    @Test
+    public void spoolsMessagesLargerThanASegment() {
+        SlackSpool spool = SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append("failed node ").append(i).append(' ');
+        }
+
+        spool.append(WEBHOOK_URL, message(0));
+        spool.append(WEBHOOK_URL, SlackPayload.encode("{\"text\":\"" + text + "\"}", SlackPayload.Format.FORM));
+        spool.append(WEBHOOK_URL, message(2));
+
+        List<SlackSpool.Entry> recovered = SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES).takeRecovered();
+        assertEquals(3, recovered.size());
+        assertEquals("{\"text\":\"" + text + "\"}", recovered.get(1).payload().message());
+        assertEquals(SlackPayload.Format.FORM, recovered.get(1).payload().format());
+    }
+
+    @Test
+    public void handsOutRecoveredMessagesOnce() {
+        SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES).append(WEBHOOK_URL, message(0));
+
+        SlackSpool reopened = SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES);
+
+        assertEquals(1, reopened.takeRecovered().size());
+        assertTrue(reopened.takeRecovered().isEmpty());
+        assertEquals(1, reopened.backlog());
+    }
+
+    @Test
+    public void dropsOldestMessagesWhenFull() {
+        SlackSpool spool = SlackSpool.open(directory, SEGMENT_SIZE, 10);
+
+        for (int i = 0; i < 25; i++) {
+            spool.append(WEBHOOK_URL, message(i));
+        }
+
+        assertEquals(10, spool.backlog());
+        assertMessages(SlackSpool.open(directory, SEGMENT_SIZE, 10).takeRecovered(), 15, 25, 1);
+    }
+
+    @Test
+    public void handsBackRequeuedMessages() {
+        SlackSpool spool = SlackSpool.open(directory, SEGMENT_SIZE, MAX_MESSAGES);
+        SlackSpool.Entry failed = spool.append(WEBHOOK_URL, message(0));
+        SlackSpool.Entry delivered = spool.append(WEBHOOK_URL, message(1));
+
+        failed.requeue();
+        failed.requeue();
+        delivered.acknowledge();
+        delivered.requeue();
+
+        assertMessages(spool.takeRecovered(), 0, 1, 1);
+        assertTrue(spool.takeRecovered().isEmpty());
+        assertEquals(1, spool.backlog());
+    }
+
+    private static SlackPayload message(int number) {
+        return SlackPayload.encode("{\"text\":\"Job failed, execution " + number + " of a long running job\"}", SlackPayload.Format.JSON);
+    }
+
+    private static void assertMessages(List<SlackSpool.Entry> recovered, int first, int end, int step) {
+        List<String> expected = new ArrayList<String>();
+        for (int i = first; i < end; i += step) {
+            expected.add(message(i).message());
+        }
+        List<String> actual = new ArrayList<String>();
+        for (SlackSpool.Entry entry : recovered) {
+            assertEquals(WEBHOOK_URL, entry.webhookUrl());
+            actual.add(entry.payload().message());
+        }
+        assertEquals(expected, actual);
+    }
+
+    private File[] segmentFiles() {
+        return directory.listFiles();
+    }
+}
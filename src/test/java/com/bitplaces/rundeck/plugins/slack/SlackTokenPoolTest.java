@@ -0,0 +1,107 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SlackTokenPoolTest {
+
+    private static final String BASE_URL = "https://hooks.slack.com/services";
+
+    private static final SlackTokenPool.Load NO_LOAD = new SlackTokenPool.Load() {
+        public long of(String webhookUrl) {
+            return 0;
+        }
+    };
+
+    @Test
+    public void listsConfiguredWebhookFirstWithoutDuplicates() {
+        SlackTokenPool pool = SlackTokenPool.forTokens(BASE_URL, "T0/B0/A", " T0/B0/B,T0/B0/A\nT0/B0/C ");
+
+        assertEquals(Arrays.asList(BASE_URL + "/T0/B0/A", BASE_URL + "/T0/B0/B", BASE_URL + "/T0/B0/C"), pool.webhookUrls());
+        assertSame(pool, SlackTokenPool.forTokens(BASE_URL, "T0/B0/A", " T0/B0/B,T0/B0/A\nT0/B0/C "));
+    }
+
+    @Test
+    public void keepsKeyOnSameWebhookAndSpreadsKeys() {
+        SlackTokenPool pool = SlackTokenPool.forTokens(BASE_URL, "T1/B1/A", "T1/B1/B T1/B1/C T1/B1/D");
+        Map<String, Integer> keysPerWebhook = new HashMap<String, Integer>();
+
+        for (int i = 0; i < 4000; i++) {
+            String webhookUrl = pool.select(SlackTokenPool.Selection.CONSISTENT_HASH, "job-" + i, NO_LOAD);
+            assertEquals(webhookUrl, pool.select(SlackTokenPool.Selection.CONSISTENT_HASH, "job-" + i, NO_LOAD));
+            Integer count = keysPerWebhook.get(webhookUrl);
+            keysPerWebhook.put(webhookUrl, count == null ? 1 : count + 1);
+        }
+
+        assertEquals(4, keysPerWebhook.size());
+        for (int count : keysPerWebhook.values()) {
+            assertTrue(String.valueOf(keysPerWebhook), count > 700 && count < 1300);
+        }
+    }
+
+    @Test
+    public void movesFewKeysWhenWebhookIsAdded() {
+        SlackTokenPool three = SlackTokenPool.forTokens(BASE_URL, "T2/B2/A", "T2/B2/B T2/B2/C");
+        SlackTokenPool four = SlackTokenPool.forTokens(BASE_URL, "T2/B2/A", "T2/B2/B T2/B2/C T2/B2/D");
+
+        int moved = 0;
+        for (int i = 0; i < 4000; i++) {
+            String before = three.select(SlackTokenPool.Selection.CONSISTENT_HASH, "job-" + i, NO_LOAD);
+            String after = four.select(SlackTokenPool.Selection.CONSISTENT_HASH, "job-" + i, NO_LOAD);
+            if (!before.equals(after)) {
+                assertEquals(BASE_URL + "/T2/B2/D", after);
+                moved++;
+            }
+        }
+
+        assertTrue(String.valueOf(moved), moved > 700 && moved < 1300);
+    }
+
+    @Test
+    public void picksLeastLoadedWebhook() {
+        SlackTokenPool pool = SlackTokenPool.forTokens(BASE_URL, "T3/B3/A", "T3/B3/B T3/B3/C");
+        SlackTokenPool.Load load = new SlackTokenPool.Load() {
+            public long of(String webhookUrl) {
+                return webhookUrl.endsWith("/B") ? 1 : 5;
+            }
+        };
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(BASE_URL + "/T3/B3/B", pool.select(SlackTokenPool.Selection.LEAST_LOADED, "job", load));
+        }
+    }
+
+    @Test
+    public void usesOnlyWebhookOfSingleTokenPool() {
+        SlackTokenPool pool = SlackTokenPool.forTokens(BASE_URL, "T4/B4/A", " ");
+
+        assertEquals(BASE_URL + "/T4/B4/A", pool.select(SlackTokenPool.Selection.LEAST_LOADED, "job", NO_LOAD));
+        assertEquals(BASE_URL + "/T4/B4/A", pool.select(SlackTokenPool.Selection.CONSISTENT_HASH, "job", NO_LOAD));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSelection() {
+        SlackTokenPool.Selection.forName("round-robin");
+    }
+}
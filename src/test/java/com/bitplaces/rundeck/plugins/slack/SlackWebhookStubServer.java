@@ -0,0 +1,330 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.bitplaces.rundeck.plugins.slack;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for a Slack incoming webhook, for tests and benchmarks.
+ *
+ * Point the plugin's {@code webhook_base_url} at {@link #baseUrl()}. Every request is answered with the default
+ * reply, "ok" unless changed, or with the next scripted reply if any are queued. Replies can be delayed to inject
+ * latency, and the server records request counts, the client connections they came in on, the peak number of
+ * concurrent requests and the last requests received.
+ */
+final class SlackWebhookStubServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECORDED_REQUESTS = 100;
+
+    /**
+     * Reply sent for a webhook request.
+     */
+    static final class Reply {
+
+        private final int statusCode;
+        private final String body;
+        private final Map<String, String> headers;
+        private final long delayMillis;
+
+        private Reply(int statusCode, String body, Map<String, String> headers, long delayMillis) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.headers = headers;
+            this.delayMillis = delayMillis;
+        }
+
+        /**
+         * @return reply Slack sends for an accepted message
+         */
+        static Reply ok() {
+            return new Reply(200, "ok", Collections.<String, String>emptyMap(), 0);
+        }
+
+        /**
+         * @return reply Slack sends for a message it cannot parse
+         */
+        static Reply invalidPayload() {
+            return new Reply(400, "invalid_payload", Collections.<String, String>emptyMap(), 0);
+        }
+
+        /**
+         * @param retryAfterSeconds value of the Retry-After header
+         * @return reply Slack sends when the webhook's rate limit is exceeded
+         */
+        static Reply rateLimited(int retryAfterSeconds) {
+            return new Reply(429, "rate_limited", Collections.singletonMap("Retry-After", String.valueOf(retryAfterSeconds)), 0);
+        }
+
+        /**
+         * @param statusCode 5xx status code
+         * @return reply for an unavailable Slack
+         */
+        static Reply serverError(int statusCode) {
+            return new Reply(statusCode, "service_unavailable", Collections.<String, String>emptyMap(), 0);
+        }
+
+        /**
+         * @param statusCode HTTP status code
+         * @param body response body
+         * @return arbitrary reply
+         */
+        static Reply of(int statusCode, String body) {
+            return new Reply(statusCode, body, Collections.<String, String>emptyMap(), 0);
+        }
+
+        /**
+         * @param delayMillis time to wait before answering
+         * @return this reply, sent after a delay
+         */
+        Reply delayedBy(long delayMillis) {
+            return new Reply(statusCode, body, headers, delayMillis);
+        }
+
+        /**
+         * @param retryAfterSeconds value of the Retry-After header
+         * @return this reply, with a Retry-After header
+         */
+        Reply withRetryAfter(int retryAfterSeconds) {
+            Map<String, String> withRetryAfter = new LinkedHashMap<String, String>(headers);
+            withRetryAfter.put("Retry-After", String.valueOf(retryAfterSeconds));
+            return new Reply(statusCode, body, withRetryAfter, delayMillis);
+        }
+    }
+
+    /**
+     * Request received by the stub.
+     */
+    static final class Request {
+
+        private final String path;
+        private final String contentType;
+        private final byte[] body;
+
+        private Request(String path, String contentType, byte[] body) {
+            this.path = path;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        String path() {
+            return path;
+        }
+
+        String contentType() {
+            return contentType;
+        }
+
+        String body() {
+            return new String(body, UTF_8);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Reply> scriptedReplies = new ConcurrentLinkedQueue<Reply>();
+    private final ConcurrentLinkedQueue<Request> recordedRequests = new ConcurrentLinkedQueue<Request>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Set<String> connections = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile Reply defaultReply = Reply.ok();
+
+    private SlackWebhookStubServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a stub on a free loopback port.
+     *
+     * @return running stub
+     * @throws IOException if the server socket cannot be opened
+     */
+    static SlackWebhookStubServer start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        final SlackWebhookStubServer stub = new SlackWebhookStubServer(server, executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                stub.handle(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return stub;
+    }
+
+    /**
+     * @return value for the webhook_base_url plugin property
+     */
+    String baseUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getHostString() + ":" + address.getPort() + "/services";
+    }
+
+    /**
+     * @param reply reply for requests without a scripted reply
+     */
+    void setDefaultReply(Reply reply) {
+        this.defaultReply = reply;
+    }
+
+    /**
+     * Queues replies that are sent, in order, to the next requests before falling back to the default reply.
+     *
+     * @param replies scripted replies
+     */
+    void enqueueReplies(Reply... replies) {
+        Collections.addAll(scriptedReplies, replies);
+    }
+
+    /**
+     * @return number of requests received
+     */
+    int requestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Waits until the stub received at least the given number of requests.
+     *
+     * @param count number of requests to wait for
+     * @param timeoutMillis maximum time to wait
+     * @return true if the requests were received in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitRequestCount(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (requestCount.get() < count) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return number of distinct client connections requests were received on
+     */
+    int connectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return highest number of requests that were being answered at the same time
+     */
+    int maxConcurrentRequests() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * @return the most recent requests received, oldest first
+     */
+    List<Request> receivedRequests() {
+        return new ArrayList<Request>(recordedRequests);
+    }
+
+    /**
+     * Forgets scripted replies, recorded requests and counters, and restores the "ok" default reply.
+     */
+    void reset() {
+        scriptedReplies.clear();
+        recordedRequests.clear();
+        requestCount.set(0);
+        connections.clear();
+        maxInFlight.set(inFlight.get());
+        defaultReply = Reply.ok();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int concurrent = inFlight.incrementAndGet();
+        try {
+            connections.add(exchange.getRemoteAddress().toString());
+            requestCount.incrementAndGet();
+            int max;
+            while (concurrent > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, concurrent)) {
+                // retry until the peak is recorded
+            }
+            record(exchange);
+
+            Reply reply = scriptedReplies.poll();
+            if (reply == null) {
+                reply = defaultReply;
+            }
+            if (reply.delayMillis > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(reply.delayMillis);
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = reply.body.getBytes(UTF_8);
+            for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+                exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/html");
+            exchange.sendResponseHeaders(reply.statusCode, body.length);
+            OutputStream responseBody = exchange.getResponseBody();
+            responseBody.write(body);
+            responseBody.close();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void record(HttpExchange exchange) throws IOException {
+        InputStream requestBody = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = requestBody.read(buffer)) >= 0) {
+            body.write(buffer, 0, count);
+        }
+        recordedRequests.add(new Request(exchange.getRequestURI().getPath(),
+                exchange.getRequestHeaders().getFirst("Content-Type"), body.toByteArray()));
+        while (recordedRequests.size() > RECORDED_REQUESTS) {
+            recordedRequests.poll();
+        }
+    }
+}